@@ -0,0 +1,23 @@
+package de.muckmuck96.elements.element.metadata;
+
+/**
+ * Point-in-time statistics of a DataHandler cache.
+ *
+ * @param hits      number of lookups that found a cached entry
+ * @param misses    number of lookups that had to load from storage
+ * @param evictions number of entries removed to stay within capacity
+ * @param size      number of cached entries
+ * @param weight    total weight of cached entries (entry count, or bytes for weighted caches)
+ */
+public record CacheStats(long hits, long misses, long evictions, long size, long weight) {
+
+    public double hitRate() {
+        long requests = hits + misses;
+        return requests == 0 ? 1.0 : (double) hits / requests;
+    }
+
+    CacheStats plus(CacheStats other) {
+        return new CacheStats(hits + other.hits, misses + other.misses, evictions + other.evictions,
+                size + other.size, weight + other.weight);
+    }
+}
@@ -0,0 +1,145 @@
+package de.muckmuck96.elements.element.metadata;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Watches config directories for {@link DataHandler} and reports changed files.
+ * <p>
+ * A daemon thread waits on a {@link WatchService} and hands every created, modified or
+ * deleted file to {@code onChange}. Because change events are not delivered reliably on
+ * every filesystem (e.g. network mounts), {@code onPoll} additionally runs every poll
+ * interval and whenever the watch service reports lost events. If no watch service is
+ * available, only polling is used.
+ * </p>
+ */
+final class ConfigWatcher {
+    private static final Logger LOGGER = Logger.getLogger(ConfigWatcher.class.getName());
+    private static final long SETTLE_MILLIS = 100L;
+
+    private final Consumer<Path> onChange;
+    private final Runnable onPoll;
+    private final long pollIntervalNanos;
+    private final WatchService service;
+    private final Set<Path> directories = ConcurrentHashMap.newKeySet();
+    private final Thread watcherThread;
+    private volatile boolean running = true;
+
+    /**
+     * @param pollIntervalMillis interval of the polling fallback, 0 to rely on change events only
+     * @param onChange           called with the absolute path of a changed file
+     * @param onPoll             re-checks all watched files
+     */
+    ConfigWatcher(long pollIntervalMillis, Consumer<Path> onChange, Runnable onPoll) {
+        this.onChange = onChange;
+        this.onPoll = onPoll;
+        this.pollIntervalNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0L, pollIntervalMillis));
+
+        WatchService created = null;
+        try {
+            created = FileSystems.getDefault().newWatchService();
+        } catch (IOException | UnsupportedOperationException e) {
+            LOGGER.log(Level.WARNING, "File watching unavailable, falling back to polling", e);
+        }
+        this.service = created;
+        this.watcherThread = new Thread(this::run, "Elements-DataHandler-ConfigWatcher");
+        this.watcherThread.setDaemon(true);
+        this.watcherThread.start();
+    }
+
+    /**
+     * Starts watching the directory, creating it if necessary.
+     */
+    void watch(Path directory) {
+        Path dir = directory.toAbsolutePath().normalize();
+        if (service == null || !directories.add(dir)) return;
+        try {
+            Files.createDirectories(dir);
+            dir.register(service, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+        } catch (IOException | ClosedWatchServiceException e) {
+            directories.remove(dir);
+            LOGGER.log(Level.WARNING, "Failed to watch " + dir + ", relying on polling", e);
+        }
+    }
+
+    void close() {
+        running = false;
+        watcherThread.interrupt();
+        if (service != null) {
+            try {
+                service.close();
+            } catch (IOException ignored) {}
+        }
+        try {
+            watcherThread.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        long nextPoll = System.nanoTime() + pollIntervalNanos;
+        while (running) {
+            try {
+                long wait = pollIntervalNanos > 0 ? Math.max(0L, nextPoll - System.nanoTime()) : Long.MAX_VALUE;
+                WatchKey key;
+                if (service != null) {
+                    key = service.poll(wait, TimeUnit.NANOSECONDS);
+                } else {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                    key = null;
+                }
+
+                boolean overflow = false;
+                Set<Path> changed = new LinkedHashSet<>();
+                while (key != null) {
+                    // Wait until the directory is quiet, so a file is not parsed while an
+                    // editor is still writing it and bursts of events collapse into one reload
+                    Path dir = (Path) key.watchable();
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                            overflow = true;
+                        } else {
+                            changed.add(dir.resolve((Path) event.context()));
+                        }
+                    }
+                    if (!key.reset()) directories.remove(dir);
+                    key = service.poll(SETTLE_MILLIS, TimeUnit.MILLISECONDS);
+                }
+                for (Path file : changed) {
+                    dispatch(() -> onChange.accept(file));
+                }
+
+                if (overflow || (pollIntervalNanos > 0 && System.nanoTime() - nextPoll >= 0)) {
+                    dispatch(onPoll);
+                    nextPoll = System.nanoTime() + pollIntervalNanos;
+                }
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                if (!running) return;
+            }
+        }
+    }
+
+    private static void dispatch(Runnable task) {
+        try {
+            task.run();
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Failed to reload config", e);
+        }
+    }
+}
@@ -4,52 +4,99 @@ import com.fasterxml.jackson.annotation.JsonAutoDetect;
 import com.fasterxml.jackson.annotation.PropertyAccessor;
 import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.MapperFeature;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.json.JsonMapper;
 import com.fasterxml.jackson.databind.module.SimpleModule;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
 import com.fasterxml.jackson.dataformat.yaml.YAMLFactory;
 import de.muckmuck96.elements.element.metadata.deserializer.ItemStackDeserializer;
 import de.muckmuck96.elements.element.metadata.deserializer.LocationDeserializer;
 import de.muckmuck96.elements.element.metadata.deserializer.PlayerDeserializer;
+import de.muckmuck96.elements.element.metadata.deserializer.PlayerRefDeserializer;
 import de.muckmuck96.elements.element.metadata.serializer.ItemStackSerializer;
 import de.muckmuck96.elements.element.metadata.serializer.LocationSerializer;
+import de.muckmuck96.elements.element.metadata.serializer.PlayerRefSerializer;
 import de.muckmuck96.elements.element.metadata.serializer.PlayerSerializer;
-import de.muckmuck96.elements.element.metadata.validator.MetadataValidationException;
-import de.muckmuck96.elements.element.metadata.validator.MetadataValidator;
-import de.muckmuck96.elements.element.metadata.validator.MetadataValueValidator;
 import org.bukkit.Location;
 import org.bukkit.inventory.ItemStack;
 import org.bukkit.plugin.java.JavaPlugin;
 
 import java.io.File;
 import java.io.IOException;
-import java.lang.reflect.Field;
+import java.io.InputStream;
 import java.lang.reflect.InvocationTargetException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
-import java.util.Collections;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
- * JSON/YAML data persistence handler with caching and validation.
+ * JSON/YAML/Smile data persistence handler with caching and validation.
  */
 public final class DataHandler {
     private static final Logger LOGGER = Logger.getLogger(DataHandler.class.getName());
     private static final ObjectMapper JSON_MAPPER;
     private static final ObjectMapper YAML_MAPPER;
+    private static final ObjectMapper SMILE_MAPPER;
     private static final int DEFAULT_MAX_CACHE_SIZE = 1000;
     private static final int DEFAULT_MAX_PATTERN_CACHE_SIZE = 500;
+    private static final int DEFAULT_WRITE_QUEUE_CAPACITY = 10_000;
+    private static final int DEFAULT_WRITE_BATCH_SIZE = 256;
+    private static final long DEFAULT_WRITE_LINGER_MILLIS = 50L;
+    private static final long DEFAULT_CONFIG_POLL_MILLIS = 5_000L;
+    private static final Duration DEFAULT_WAL_RETENTION = Duration.ofHours(24);
+    private static final long STREAM_READ_THRESHOLD = 64L * 1024L;
+    private static final long MIN_JOURNAL_COMPACTION_SIZE = 16L * 1024L;
+    private static final Pattern SHARD_DIR = Pattern.compile("[0-9a-f]{2}");
 
     static {
         SimpleModule playerModule = new SimpleModule("PlayerModule")
                 .addSerializer(org.bukkit.entity.Player.class, new PlayerSerializer())
-                .addDeserializer(org.bukkit.entity.Player.class, new PlayerDeserializer());
+                .addDeserializer(org.bukkit.entity.Player.class, new PlayerDeserializer())
+                .addSerializer(PlayerRef.class, new PlayerRefSerializer())
+                .addDeserializer(PlayerRef.class, new PlayerRefDeserializer());
 
         SimpleModule itemStackModule = new SimpleModule("ItemStackModule")
                 .addSerializer(ItemStack.class, new ItemStackSerializer())
@@ -80,34 +127,133 @@ public final class DataHandler {
                 .visibility(PropertyAccessor.GETTER, JsonAutoDetect.Visibility.PUBLIC_ONLY)
                 .visibility(PropertyAccessor.SETTER, JsonAutoDetect.Visibility.PUBLIC_ONLY)
                 .build();
+
+        SMILE_MAPPER = JsonMapper.builder(new SmileFactory())
+                .addModule(playerModule)
+                .addModule(itemStackModule)
+                .addModule(locationModule)
+                .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false)
+                .configure(DeserializationFeature.READ_UNKNOWN_ENUM_VALUES_AS_NULL, true)
+                .visibility(PropertyAccessor.FIELD, JsonAutoDetect.Visibility.ANY)
+                .visibility(PropertyAccessor.GETTER, JsonAutoDetect.Visibility.PUBLIC_ONLY)
+                .visibility(PropertyAccessor.SETTER, JsonAutoDetect.Visibility.PUBLIC_ONLY)
+                .build();
     }
 
     private static final class Cached {
         final Object value;
         final long lastModified; // -1 if file didn't exist or couldn't read
+        final long contentHash;  // hash of the bytes last read/written, 0 if unknown
+        final int size;          // length of the bytes last read/written, 0 if unknown
+        final boolean dirty;     // true if changed via set/save and not yet written
+        final JournalState journal; // persisted state of incremental storages, null otherwise
+        final int weight;        // bytes counted against the cache limit: size, or an estimate while it is 0
+
+        Cached(Object value, long lastModified, long contentHash, int size, boolean dirty) {
+            this(value, lastModified, contentHash, size, dirty, null);
+        }
+
+        Cached(Object value, long lastModified, long contentHash, int size, boolean dirty, JournalState journal) {
+            this(value, lastModified, contentHash, size, dirty, journal, size);
+        }
 
-        Cached(Object value, long lastModified) {
+        private Cached(Object value, long lastModified, long contentHash, int size, boolean dirty,
+                       JournalState journal, int weight) {
             this.value = value;
             this.lastModified = lastModified;
+            this.contentHash = contentHash;
+            this.size = size;
+            this.dirty = dirty;
+            this.journal = journal;
+            this.weight = weight;
+        }
+
+        Cached changed(Object newValue, long newLastModified) {
+            return new Cached(newValue, newLastModified, contentHash, size, true, journal, weight);
+        }
+
+        Cached weighing(int estimate) {
+            return new Cached(value, lastModified, contentHash, size, dirty, journal, estimate);
+        }
+
+        Cached written(Object obj, long newLastModified, long hash, int newSize, JournalState newJournal) {
+            if (value == obj) {
+                return new Cached(obj, newLastModified, hash, newSize, false, newJournal);
+            }
+            // replaced in the meantime: stays dirty, but the next diff has to start from what is on disk
+            return newJournal != null ? new Cached(value, lastModified, hash, newSize, dirty, newJournal, weight) : this;
         }
     }
 
+    /**
+     * What an incremental storage looks like on disk: the data file (see {@link Cached#contentHash})
+     * with the journal replayed onto it.
+     *
+     * @param tree        the persisted document
+     * @param journalSize length of the journal in bytes, 0 if there is none
+     */
+    private record JournalState(JsonNode tree, long journalSize) {}
+
     private final Path baseDir;
     private final int maxCacheSize;
     private final int maxPatternCacheSize;
     private final Map<Class<?>, MetadataInfo> registry = new ConcurrentHashMap<>();
-    private final Map<Class<?>, Cached> instances;
-    private final Map<Class<?>, Map<String, Cached>> patternInstances = new ConcurrentHashMap<>();
+    private final MetadataCache<Class<?>, Cached> instances;
+    private final Map<Class<?>, MetadataCache<String, Cached>> patternInstances = new ConcurrentHashMap<>();
+    private volatile long maxPatternCacheBytes;
+    private final Map<Class<?>, SegmentLog> logs = new ConcurrentHashMap<>();
+    private final Map<Class<?>, MetadataIndex> indexes = new ConcurrentHashMap<>();
+    private final Map<Class<?>, Map<Integer, UnaryOperator<ObjectNode>>> migrations = new ConcurrentHashMap<>();
+    private final Set<Class<?>> unsharded = ConcurrentHashMap.newKeySet(); // sharded classes that may still have flat files
+    private final Map<String, CompletableFuture<Cached>> loading = new ConcurrentHashMap<>();
+    private volatile ExecutorService loadPool;
+    private final Map<String, Cached> pendingEvictions = new ConcurrentHashMap<>();
+    private final Map<String, Runnable> failedWriteBacks = new ConcurrentHashMap<>(); // retried by saveMetadatas()
+    private final Object[] entryLocks = new Object[64];
+    private final ReentrantReadWriteLock writeGate = new ReentrantReadWriteLock(); // shared by writes, exclusive for snapshots
+    private final Object snapshotLock = new Object();
+    private volatile SnapshotWriter.Changes snapshotChanges; // files written since the last snapshot started
+    private final LongAdder dirtyEvictions = new LongAdder();
+    private volatile MetadataEvictionListener evictionListener;
+    private volatile ExecutorService evictionWriter;
+    private volatile WriteBehindQueue writeBehind;
+    private volatile ConfigWatcher configWatcher;
+    private volatile WriteAheadLog wal;
+    private volatile OffHeapCache offHeap;
+    private final Map<String, Map<String, byte[]>> walRecovery = new ConcurrentHashMap<>();
+    private final LongAdder writtenFiles = new LongAdder();
+    private final LongAdder skippedWrites = new LongAdder();
+    private final ThreadLocal<FileWriteBatch> currentBatch = new ThreadLocal<>();
+    private final ThreadLocal<List<Runnable>> transactionRollback = new ThreadLocal<>();
+    private final ThreadLocal<List<Runnable>> transactionCommit = new ThreadLocal<>();
+    private final MetadataStore store;
+    private volatile boolean atomicWrites;
+    private volatile boolean batchedFsync;
 
     public DataHandler(Path baseDir) {
         this(baseDir, DEFAULT_MAX_CACHE_SIZE, DEFAULT_MAX_PATTERN_CACHE_SIZE);
     }
 
     public DataHandler(Path baseDir, int maxCacheSize, int maxPatternCacheSize) {
+        this(baseDir, maxCacheSize, maxPatternCacheSize, null);
+    }
+
+    /**
+     * Creates a DataHandler that keeps all storages except configs in the given store
+     * instead of one file per instance. The handler closes the store in {@link #close()}.
+     *
+     * @param store the storage backend, or null for files
+     */
+    public DataHandler(Path baseDir, int maxCacheSize, int maxPatternCacheSize, MetadataStore store) {
         this.baseDir = baseDir;
+        this.store = store;
         this.maxCacheSize = maxCacheSize;
         this.maxPatternCacheSize = maxPatternCacheSize;
-        this.instances = Collections.synchronizedMap(createLruCache(maxCacheSize));
+        this.instances = new MetadataCache<>(maxCacheSize, cached -> 1,
+                (clazz, cached) -> onEvicting(clazz, null, cached), (clazz, cached) -> onEvicted(clazz, null, cached));
+        for (int i = 0; i < entryLocks.length; i++) {
+            entryLocks[i] = new Object();
+        }
         try {
             Files.createDirectories(baseDir);
         } catch (IOException e) {
@@ -115,13 +261,18 @@ public final class DataHandler {
         }
     }
 
-    private static <K, V> LinkedHashMap<K, V> createLruCache(int maxSize) {
-        return new LinkedHashMap<>(16, 0.75f, true) {
-            @Override
-            protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
-                return size() > maxSize;
-            }
-        };
+    private MetadataCache<String, Cached> newPatternCache(Class<?> clazz) {
+        long maxBytes = maxPatternCacheBytes;
+        if (maxBytes > 0) {
+            return new MetadataCache<>(maxBytes, cached -> cached.weight,
+                    (id, cached) -> onEvicting(clazz, id, cached), (id, cached) -> onEvicted(clazz, id, cached));
+        }
+        return new MetadataCache<>(maxPatternCacheSize, cached -> 1,
+                (id, cached) -> onEvicting(clazz, id, cached), (id, cached) -> onEvicted(clazz, id, cached));
+    }
+
+    private MetadataCache<String, Cached> patternCache(Class<?> clazz) {
+        return patternInstances.computeIfAbsent(clazz, this::newPatternCache);
     }
 
     public static DataHandler forPlugin(JavaPlugin plugin) {
@@ -132,8 +283,613 @@ public final class DataHandler {
         return new DataHandler(plugin.getDataFolder().toPath(), maxCacheSize, maxPatternCacheSize);
     }
 
+    public static DataHandler forPlugin(JavaPlugin plugin, int maxCacheSize, int maxPatternCacheSize,
+                                       MetadataStore store) {
+        return new DataHandler(plugin.getDataFolder().toPath(), maxCacheSize, maxPatternCacheSize, store);
+    }
+
+    /**
+     * Enables write-behind mode with default queue settings.
+     *
+     * @see #enableWriteBehind(int, int, long)
+     */
+    public void enableWriteBehind() {
+        enableWriteBehind(DEFAULT_WRITE_QUEUE_CAPACITY, DEFAULT_WRITE_BATCH_SIZE, DEFAULT_WRITE_LINGER_MILLIS);
+    }
+
+    /**
+     * Enables write-behind mode.
+     * <p>
+     * In this mode {@code set(...)} and {@code save(...)} only update the cache and enqueue the
+     * entry; a background writer serializes and writes it later. Repeated writes to the same file
+     * are coalesced. {@link #saveMetadatas()} and {@link #flush()} block until the queue is drained.
+     * </p>
+     * <p>
+     * Objects are serialized on the writer thread, so callers should not mutate an instance
+     * from other threads while it is queued.
+     * </p>
+     *
+     * @param capacity     maximum number of distinct pending files before callers block
+     * @param batchSize    maximum number of files written per batch
+     * @param lingerMillis how long the writer waits for further writes to coalesce
+     */
+    public synchronized void enableWriteBehind(int capacity, int batchSize, long lingerMillis) {
+        if (writeBehind != null) {
+            writeBehind.shutdown();
+        }
+        writeBehind = new WriteBehindQueue(capacity, batchSize, lingerMillis, this::writeBatch);
+    }
+
+    /**
+     * Flushes all pending writes and switches back to synchronous writes.
+     */
+    public synchronized void disableWriteBehind() {
+        WriteBehindQueue queue = writeBehind;
+        if (queue == null) return;
+        writeBehind = null;
+        queue.shutdown();
+    }
+
+    public boolean isWriteBehind() {
+        return writeBehind != null;
+    }
+
+    /**
+     * @return the number of files waiting to be written by the write-behind queue
+     */
+    public int getPendingWrites() {
+        WriteBehindQueue queue = writeBehind;
+        return queue == null ? 0 : queue.pendingCount();
+    }
+
+    /**
+     * Blocks until all writes queued so far (write-behind saves and write-backs of evicted
+     * entries) have been written to disk.
+     *
+     * @throws RuntimeException if a queued write failed since the last flush, or an evicted
+     *                          entry could not be written back (it stays cached and is
+     *                          retried by {@link #saveMetadatas()})
+     */
+    public void flush() {
+        ExecutorService writer = evictionWriter;
+        if (writer != null) {
+            try {
+                // single-threaded, so this completes after every write-back submitted before it
+                writer.submit(() -> {}).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException | RejectedExecutionException ignored) {}
+        }
+        WriteBehindQueue queue = writeBehind;
+        if (queue != null) queue.flush();
+        if (!failedWriteBacks.isEmpty()) {
+            throw new RuntimeException(failedWriteBacks.size() + " evicted entries could not be written back");
+        }
+    }
+
+    /**
+     * Flushes pending writes and stops background threads. Call this in onDisable()
+     * after {@link #saveMetadatas()}.
+     */
+    public void close() {
+        RuntimeException failure = null;
+        try {
+            flush();
+            disableWriteBehind();
+        } catch (RuntimeException e) {
+            // still stop everything, then report it
+            failure = e;
+            disableWriteBehind();
+        }
+        disableConfigWatcher();
+        persistIndexes();
+        // no checkpoint: changes not saved by saveMetadatas() stay in the log and are replayed on the next start
+        disableWriteAheadLog();
+        synchronized (this) {
+            if (evictionWriter != null) {
+                evictionWriter.shutdown();
+                evictionWriter = null;
+            }
+            if (loadPool != null) {
+                loadPool.shutdown();
+                loadPool = null;
+            }
+        }
+        for (SegmentLog log : logs.values()) {
+            try {
+                log.close();
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to close log " + log.file(), e);
+            }
+        }
+        logs.clear();
+        if (store != null) {
+            try {
+                store.close();
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to close metadata store", e);
+            }
+        }
+        if (failure != null) throw failure;
+    }
+
+    /**
+     * Runs the body as one transaction: everything saved inside it, via {@code save(...)}
+     * or {@code set(...)}, is written together when the body returns, bypassing the
+     * write-behind queue. If the body throws, nothing that is still pending is written and
+     * every instance set or saved inside the body is dropped from the cache, so the next
+     * {@code get} returns the stored state.
+     * <p>
+     * With a {@link MetadataStore} the transaction is atomic, even across classes: after a
+     * crash either all or none of its writes are visible. With file storage the writes are
+     * only grouped (and with batched fsync synced together).
+     * </p>
+     *
+     * @param body the code to run; nested calls join the outer transaction
+     */
+    public void transaction(Runnable body) {
+        if (transactionRollback.get() != null) {
+            body.run();
+            return;
+        }
+        // queued writes must not overtake the transaction's writes
+        flush();
+        Lock gate = writeGate.readLock();
+        gate.lock();
+        try {
+            FileWriteBatch outer = currentBatch.get();
+            FileWriteBatch batch = new FileWriteBatch(atomicWrites, batchedFsync);
+            currentBatch.set(batch);
+            List<Runnable> rollback = new ArrayList<>();
+            List<Runnable> commit = new ArrayList<>();
+            transactionRollback.set(rollback);
+            transactionCommit.set(commit);
+            try {
+                body.run();
+            } catch (RuntimeException | Error e) {
+                batch.abort();
+                rollback.forEach(Runnable::run);
+                throw e;
+            } finally {
+                transactionRollback.remove();
+                transactionCommit.remove();
+                if (outer != null) currentBatch.set(outer);
+                else currentBatch.remove();
+            }
+            try {
+                batch.commit();
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to commit transaction", e);
+            }
+            commit.forEach(Runnable::run);
+        } finally {
+            gate.unlock();
+        }
+    }
+
+    /**
+     * Watches config files with the default polling fallback of 5 seconds.
+     *
+     * @see #enableConfigWatcher(long)
+     */
+    public void enableConfigWatcher() {
+        enableConfigWatcher(DEFAULT_CONFIG_POLL_MILLIS);
+    }
+
+    /**
+     * Reloads {@code config = true} storages in the background when their files change.
+     * <p>
+     * Without the watcher every {@code get} of a config checks the file's modification time.
+     * With it, {@code get} only reads the cache; a background thread receives filesystem
+     * change events and re-parses changed files. On filesystems that do not report changes
+     * reliably, all cached configs are additionally re-checked every poll interval.
+     * </p>
+     *
+     * @param pollIntervalMillis interval of the polling fallback, 0 to disable polling
+     */
+    public synchronized void enableConfigWatcher(long pollIntervalMillis) {
+        if (configWatcher != null) {
+            configWatcher.close();
+        }
+        ConfigWatcher watcher = new ConfigWatcher(pollIntervalMillis, this::reloadChangedConfig, this::reloadAllConfigs);
+        for (MetadataInfo info : registry.values()) {
+            if (info.config) watcher.watch(directoryOf(info));
+        }
+        configWatcher = watcher;
+        // Catch changes made before the watch was registered
+        reloadAllConfigs();
+    }
+
+    /**
+     * Stops the config watcher; {@code get} checks modification times again.
+     */
+    public synchronized void disableConfigWatcher() {
+        ConfigWatcher watcher = configWatcher;
+        if (watcher == null) return;
+        configWatcher = null;
+        watcher.close();
+    }
+
+    public boolean isConfigWatcher() {
+        return configWatcher != null;
+    }
+
+    /**
+     * Enables the write-ahead log with a retention window of 24 hours.
+     *
+     * @see #enableWriteAheadLog(Duration)
+     */
+    public void enableWriteAheadLog() {
+        enableWriteAheadLog(DEFAULT_WAL_RETENTION);
+    }
+
+    /**
+     * Records every {@code set}, {@code save} and {@code update} in a sequential log
+     * ({@code .wal/} in the data folder), so changes made between autosaves survive a crash.
+     * <p>
+     * Records are appended by a background thread that writes and fsyncs everything queued
+     * since its last round at once, so the caller only pays for serializing the instance.
+     * {@link #saveMetadatas()} writes a checkpoint once everything has been written. The
+     * changes after the last checkpoint, whether the server crashed or they were just not
+     * saved before {@link #close()}, are written to their storages when the handler is next
+     * started with the log enabled; each class is replayed when it is registered.
+     * If the log cannot be written, {@code set}, {@code save} and {@code update} throw until
+     * the next successful {@link #saveMetadatas()}.
+     * Enable the log right after creating the handler, before anything is loaded.
+     * </p>
+     * Configs are not logged. Old log segments are kept for the retention window, see
+     * {@link #restore(Class, String, Instant)}.
+     *
+     * @param retention how long mutations are kept for point-in-time restores
+     */
+    public synchronized void enableWriteAheadLog(Duration retention) {
+        if (wal != null) return;
+        WriteAheadLog log;
+        try {
+            log = new WriteAheadLog(baseDir.resolve(".wal"), retention);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to open write-ahead log in " + baseDir, e);
+        }
+        walRecovery.putAll(log.recovered());
+        wal = log;
+        for (MetadataInfo info : registry.values()) {
+            replayWal(info);
+        }
+    }
+
+    /**
+     * Stops logging mutations. Nothing is checkpointed, so unsaved changes are still
+     * replayed on the next start with the log enabled.
+     */
+    public synchronized void disableWriteAheadLog() {
+        WriteAheadLog log = wal;
+        if (log == null) return;
+        wal = null;
+        try {
+            log.close();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to close write-ahead log", e);
+        }
+    }
+
+    public boolean isWriteAheadLog() {
+        return wal != null;
+    }
+
+    /**
+     * Restores a pattern storage entry to its state at a point in time, as recorded by the
+     * write-ahead log, and saves it.
+     *
+     * @param clazz       the class annotated with @Metadata (with {id} pattern)
+     * @param id          the id of the entry
+     * @param pointInTime the time to restore
+     * @return the restored instance, or null if the log has no change of the entry at or
+     * before that time (e.g. because it is older than the retention window)
+     */
+    public <T> T restore(Class<T> clazz, String id, Instant pointInTime) {
+        T restored = readWal(clazz, id, pointInTime);
+        if (restored != null) save(clazz, id, restored);
+        return restored;
+    }
+
+    public <T> T restore(Class<T> clazz, UUID uuid, Instant pointInTime) {
+        return restore(clazz, uuid.toString(), pointInTime);
+    }
+
+    /**
+     * Restores a singleton storage to its state at a point in time and saves it.
+     *
+     * @see #restore(Class, String, Instant)
+     */
+    public <T> T restore(Class<T> clazz, Instant pointInTime) {
+        T restored = readWal(clazz, null, pointInTime);
+        if (restored != null) {
+            set(clazz, restored);
+            if (writeBehind == null && !inTransaction()) write(registry.get(clazz), null, restored);
+        }
+        return restored;
+    }
+
+    /**
+     * Writes a consistent backup of the data directory to {@code target}, which must not
+     * exist yet (or be empty) and must lie outside the data directory.
+     * <p>
+     * Queued writes are flushed first. Files are then copied while writes go on; afterwards
+     * writes are held back only while the files written in the meantime are copied again,
+     * so the snapshot never contains half of a transaction or batch. Logs only have their
+     * length taken then; what was appended is copied after writes go on. (With a custom
+     * {@link MetadataStore} its files are not known, so the size and time of all files are
+     * checked during that pause.) Files that are unchanged since the newest snapshot in the
+     * same parent directory are hard-linked to it instead of copied, which keeps regular
+     * snapshots cheap: {@code snapshot(backups.resolve(LocalDate.now().toString()))}.
+     * Whether a file changed is decided by its size, its modification time and whether it
+     * was written since the last snapshot; only files modified within two seconds of that
+     * snapshot are read to tell.
+     * Every snapshot is complete on its own and can be deleted independently. Its files are
+     * in {@code target/data}, next to a {@code manifest.json} listing them.
+     * </p>
+     * Only stored state is included; call {@link #saveMetadatas()} first to include unsaved
+     * changes. The write-ahead log and query indexes, which are rebuilt when missing, are
+     * not included.
+     *
+     * @param target the snapshot directory
+     * @return what was copied and linked, and how long writes were paused
+     * @throws IllegalStateException if called inside a transaction
+     */
+    public MetadataSnapshot snapshot(Path target) {
+        if (writeGate.getReadHoldCount() > 0) {
+            throw new IllegalStateException("snapshot() cannot be called inside a transaction");
+        }
+        flush();
+        synchronized (snapshotLock) {
+            try {
+                return new SnapshotWriter(baseDir, writeGate.writeLock(), JSON_MAPPER, this::trackChanges,
+                        this::appendOnly).write(target);
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to write snapshot " + target, e);
+            }
+        }
+    }
+
+    /**
+     * Called by the snapshot writer with the write gate held exclusively.
+     */
+    private SnapshotWriter.Changes trackChanges(SnapshotWriter.Changes next) {
+        SnapshotWriter.Changes previous = snapshotChanges;
+        snapshotChanges = next;
+        return previous;
+    }
+
+    /**
+     * @return true for the files that are only appended to and replaced by compaction
+     */
+    private boolean appendOnly(Path file) {
+        if (store instanceof EmbeddedMetadataStore embedded && sameFile(embedded.file(), file)) return true;
+        for (SegmentLog log : logs.values()) {
+            if (sameFile(log.file(), file)) return true;
+        }
+        return false;
+    }
+
+    private static boolean sameFile(Path a, Path b) {
+        return a.toAbsolutePath().normalize().equals(b.toAbsolutePath().normalize());
+    }
+
+    /**
+     * Reports a written or deleted file to the snapshot tracking. Call while holding the write gate.
+     */
+    private void changed(Path file) {
+        SnapshotWriter.Changes changes = snapshotChanges;
+        if (changes != null) changes.add(file);
+    }
+
+    /**
+     * Reports bytes appended to a log. Call while holding the write gate.
+     */
+    private void appended(Path file) {
+        SnapshotWriter.Changes changes = snapshotChanges;
+        if (changes != null) changes.addAppended(file);
+    }
+
+    /**
+     * @param compacted whether the store's files were rewritten rather than appended to
+     */
+    private void storeChanged(boolean compacted) {
+        SnapshotWriter.Changes changes = snapshotChanges;
+        if (changes == null) return;
+        if (!(store instanceof EmbeddedMetadataStore embedded)) changes.addUnknown();
+        else if (compacted) changes.add(embedded.file());
+        else changes.addAppended(embedded.file());
+    }
+
+    private boolean inTransaction() {
+        return transactionRollback.get() != null;
+    }
+
+    /**
+     * Records a mutation in the write-ahead log; inside a transaction only once it has committed.
+     */
+    private void logMutation(MetadataInfo info, String idOrNull, Object instance) {
+        WriteAheadLog log = wal;
+        if (log == null || info.config) return;
+        byte[] bytes = serialize(info, instance, idOrNull);
+        String className = info.clazz.getName();
+        String id = idOrNull == null ? "" : idOrNull;
+        List<Runnable> commit = transactionCommit.get();
+        if (commit != null) {
+            commit.add(() -> log.append(className, id, bytes));
+        } else {
+            log.append(className, id, bytes);
+        }
+    }
+
+    /**
+     * Writes the changes of a class recovered from the write-ahead log to its storage.
+     */
+    private void replayWal(MetadataInfo info) {
+        if (walRecovery.isEmpty()) return;
+        Map<String, byte[]> recovered = walRecovery.remove(info.clazz.getName());
+        if (recovered == null) return;
+        inWriteBatch(() -> recovered.forEach((id, bytes) -> {
+            String idOrNull = info.pattern ? id : null;
+            writeBytes(info, bytes, idOrNull, resolveFile(info, idOrNull), null);
+        }));
+        clearCache(info.clazz);
+        LOGGER.info("Recovered " + recovered.size() + " " + info.clazz.getSimpleName()
+                + " entries from the write-ahead log");
+    }
+
+    private <T> T readWal(Class<T> clazz, String idOrNull, Instant pointInTime) {
+        ensureRegistered(clazz);
+        MetadataInfo info = registry.get(clazz);
+        if (info == null) {
+            throw new IllegalStateException("Class " + clazz.getName() + " is not annotated with @Metadata.");
+        }
+        if (info.pattern == (idOrNull == null)) {
+            throw new IllegalStateException("Metadata " + clazz.getName()
+                    + (info.pattern ? " is pattern-based; use restore(clazz, id, time) instead."
+                    : " is not pattern-based; use restore(clazz, time) instead."));
+        }
+        WriteAheadLog log = wal;
+        if (log == null) {
+            throw new IllegalStateException("The write-ahead log is not enabled.");
+        }
+        try {
+            byte[] bytes = log.find(clazz.getName(), idOrNull == null ? "" : idOrNull, pointInTime.toEpochMilli());
+            if (bytes == null) return null;
+            Object restored = info.reader.readValue(upgrade(info, mapperFor(info.type).readTree(bytes)));
+            validateMetadataObject(info, restored);
+            return clazz.cast(restored);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to restore " + clazz.getName() + " (id=" + idOrNull + ")", e);
+        }
+    }
+
+    private void onRollback(Runnable undo) {
+        List<Runnable> rollback = transactionRollback.get();
+        if (rollback != null) rollback.add(undo);
+    }
+
+    /**
+     * Enables crash-safe writes: each file is written to a temporary file in the same
+     * directory, fsync'd and atomically renamed over the target.
+     *
+     * @param atomicWrites true to write via temp file + fsync + rename
+     */
+    public void setAtomicWrites(boolean atomicWrites) {
+        this.atomicWrites = atomicWrites;
+    }
+
+    public boolean isAtomicWrites() {
+        return atomicWrites;
+    }
+
+    /**
+     * If enabled together with atomic writes, files written by {@link #saveMetadatas()} and by
+     * the write-behind queue are synced as a group at the end of each batch instead of one by one.
+     *
+     * @param batchedFsync true to group fsyncs per batch
+     */
+    public void setBatchedFsync(boolean batchedFsync) {
+        this.batchedFsync = batchedFsync;
+    }
+
+    public boolean isBatchedFsync() {
+        return batchedFsync;
+    }
+
+    /**
+     * Bounds pattern caches by the serialized size of their entries instead of the entry count.
+     * Applies to pattern classes whose cache is created after this call.
+     *
+     * @param maxBytes maximum serialized bytes cached per pattern class, or 0 to limit by
+     *                 {@code maxPatternCacheSize} entries
+     */
+    public void setMaxPatternCacheBytes(long maxBytes) {
+        this.maxPatternCacheBytes = Math.max(0L, maxBytes);
+    }
+
+    /**
+     * @return hit/miss/eviction statistics summed over the singleton cache and all pattern caches
+     */
+    public CacheStats getCacheStats() {
+        CacheStats stats = instances.stats();
+        for (MetadataCache<String, Cached> cache : patternInstances.values()) {
+            stats = stats.plus(cache.stats());
+        }
+        return stats;
+    }
+
+    /**
+     * Adds an off-heap tier below the pattern caches: entries evicted from the heap keep
+     * their serialized bytes in direct memory, so loading them again costs a parse instead
+     * of a disk read, without growing the heap. The oldest entries are dropped once
+     * {@code maxBytes} is used. Configs and {@code incremental} storages are not kept.
+     *
+     * @param maxBytes the direct memory to use, at least 128 KiB
+     */
+    public synchronized void enableOffHeapCache(long maxBytes) {
+        offHeap = new OffHeapCache(maxBytes);
+    }
+
+    /**
+     * Drops the off-heap tier; its memory is released once the buffers are garbage collected.
+     */
+    public synchronized void disableOffHeapCache() {
+        offHeap = null;
+    }
+
+    /**
+     * @return hits, misses and evictions of the off-heap tier, with its weight in bytes,
+     * or null if it is not enabled
+     */
+    public CacheStats getOffHeapCacheStats() {
+        OffHeapCache cold = offHeap;
+        return cold == null ? null : cold.stats();
+    }
+
+    /**
+     * @param clazz a pattern class annotated with @Metadata
+     * @return statistics of the pattern cache of this class
+     */
+    public CacheStats getCacheStats(Class<?> clazz) {
+        MetadataCache<String, Cached> cache = patternInstances.get(clazz);
+        return cache == null ? new CacheStats(0, 0, 0, 0, 0) : cache.stats();
+    }
+
+    /**
+     * Registers a listener that is notified whenever a cached instance is evicted.
+     *
+     * @param listener the listener, or null to remove it
+     */
+    public void setEvictionListener(MetadataEvictionListener listener) {
+        this.evictionListener = listener;
+    }
+
+    /**
+     * @return the number of evicted instances that had unsaved changes and were written back
+     */
+    public long getDirtyEvictions() {
+        return dirtyEvictions.sum();
+    }
+
+    /**
+     * @return the number of files written since this handler was created
+     */
+    public long getWrittenFiles() {
+        return writtenFiles.sum();
+    }
+
+    /**
+     * @return the number of writes skipped because the serialized content was unchanged
+     */
+    public long getSkippedWrites() {
+        return skippedWrites.sum();
+    }
+
     public static ObjectMapper jsonMapper() { return JSON_MAPPER; }
     public static ObjectMapper yamlMapper() { return YAML_MAPPER; }
+    public static ObjectMapper smileMapper() { return SMILE_MAPPER; }
 
     public static <T> T load(String path, Class<T> type) {
         try {
@@ -170,46 +926,187 @@ public final class DataHandler {
 
     // ---------- Lazy annotation-driven storage (JSON + YAML) ----------
 
+    /**
+     * Loads singleton storages in parallel, e.g. all configs during onEnable.
+     *
+     * @param classes singleton classes annotated with @Metadata
+     * @see #loadMetadatasTimed(Class[])
+     */
     @SafeVarargs
     public final <T> void loadMetadatas(Class<T>... classes) {
-        for (Class<T> c : classes) { get(c); }
+        loadMetadatasTimed(classes);
+    }
+
+    /**
+     * Loads singleton storages in parallel on the handler's loader threads and reports how
+     * long each took. Every class is parsed and validated independently.
+     * <p>
+     * If a class fails to load, classes that have not started yet are skipped and, once
+     * the running ones have finished, a single exception listing every failed class is
+     * thrown; the individual failures are attached as cause and suppressed exceptions.
+     * </p>
+     *
+     * @param classes singleton classes annotated with @Metadata
+     * @return the load time of every class, in the order given
+     */
+    public Map<Class<?>, Duration> loadMetadatasTimed(Class<?>... classes) {
+        Map<Class<?>, Duration> timings = new ConcurrentHashMap<>();
+        Map<Class<?>, Throwable> failures = new ConcurrentHashMap<>();
+        AtomicBoolean failed = new AtomicBoolean();
+        List<CompletableFuture<Void>> tasks = new ArrayList<>(classes.length);
+        for (Class<?> clazz : classes) {
+            tasks.add(CompletableFuture.runAsync(() -> {
+                if (failed.get()) return;
+                long start = System.nanoTime();
+                try {
+                    get(clazz);
+                    timings.put(clazz, Duration.ofNanos(System.nanoTime() - start));
+                } catch (RuntimeException e) {
+                    failed.set(true);
+                    failures.put(clazz, e);
+                }
+            }, loadPool()));
+        }
+        CompletableFuture.allOf(tasks.toArray(CompletableFuture[]::new)).join();
+
+        if (!failures.isEmpty()) {
+            List<Class<?>> failedClasses = Stream.of(classes).filter(failures::containsKey).distinct().toList();
+            RuntimeException error = new RuntimeException("Failed to load " + failedClasses.size() + " metadata class(es): "
+                    + failedClasses.stream().map(Class::getSimpleName).collect(Collectors.joining(", ")),
+                    failures.get(failedClasses.get(0)));
+            for (Class<?> clazz : failedClasses.subList(1, failedClasses.size())) {
+                error.addSuppressed(failures.get(clazz));
+            }
+            throw error;
+        }
+
+        Map<Class<?>, Duration> ordered = new LinkedHashMap<>();
+        for (Class<?> clazz : classes) {
+            ordered.put(clazz, timings.get(clazz));
+        }
+        LOGGER.log(Level.FINE, () -> "Loaded metadata " + ordered);
+        return ordered;
     }
 
+    /**
+     * Saves all cached editable storages. Entries that were not changed via set/save are
+     * serialized and only written if their content differs from the last read/written bytes.
+     * In write-behind mode this enqueues every entry
+     * and then waits until the queue has been flushed, so it still guarantees durability
+     * when called from onDisable().
+     *
+     * @throws RuntimeException if a write failed; no write-ahead log checkpoint is written
+     *                          then, so the log keeps the unsaved changes
+     */
     public void saveMetadatas() {
-        for (Map.Entry<Class<?>, Cached> e : instances.entrySet()) {
+        WriteAheadLog log = wal;
+        long mark = log == null ? 0L : log.nextSequence();
+        RuntimeException unlogged = null;
+        if (log != null && !walRecovery.isEmpty()) {
+            // not replayed yet because the class was never registered, keep it past the checkpoint
+            try {
+                walRecovery.forEach((className, ids) -> ids.forEach((id, bytes) -> log.append(className, id, bytes)));
+            } catch (IllegalStateException e) {
+                unlogged = e;
+            }
+        }
+        // both throw if any write failed, so the checkpoint below is only written once
+        // everything logged before the mark is on disk
+        inWriteBatch(this::writeAllCached);
+        flush();
+        compactLogs();
+        persistIndexes();
+        if (unlogged != null) throw unlogged;
+        if (log != null) log.checkpoint(mark);
+    }
+
+    /**
+     * Compacts every {@link MetadataStorage#LOG} storage whose log is mostly made up of
+     * overwritten records. Called automatically by {@link #saveMetadatas()}.
+     */
+    public void compactLogs() {
+        Lock gate = writeGate.readLock();
+        gate.lock();
+        try {
+            for (SegmentLog log : logs.values()) {
+                if (!log.needsCompaction()) continue;
+                changed(log.file());
+                try {
+                    log.compact();
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Failed to compact log " + log.file(), e);
+                }
+            }
+            if (store != null) {
+                storeChanged(true);
+                try {
+                    store.compact();
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Failed to compact metadata store", e);
+                }
+            }
+        } finally {
+            gate.unlock();
+        }
+    }
+
+    /**
+     * Folds the journal of every cached {@code incremental} storage back into its data file.
+     * Journals are also folded automatically once they reach half the size of their data file.
+     */
+    public void compactJournals() {
+        inWriteBatch(() -> {
+            for (Map.Entry<Class<?>, Cached> e : instances.snapshot()) {
+                MetadataInfo info = registry.get(e.getKey());
+                if (info == null || !info.incremental || info.pattern || !hasJournal(e.getValue())) continue;
+                write(info, null, e.getValue().value, true);
+            }
+            for (Map.Entry<Class<?>, MetadataCache<String, Cached>> entry : patternInstances.entrySet()) {
+                MetadataInfo info = registry.get(entry.getKey());
+                if (info == null || !info.incremental || !info.pattern) continue;
+                for (Map.Entry<String, Cached> idEntry : entry.getValue().snapshot()) {
+                    if (hasJournal(idEntry.getValue())) write(info, idEntry.getKey(), idEntry.getValue().value, true);
+                }
+            }
+        });
+        flush();
+    }
+
+    private static boolean hasJournal(Cached cached) {
+        return cached.journal != null && cached.journal.journalSize() > 0;
+    }
+
+    private void writeAllCached() {
+        for (Map.Entry<Class<?>, Cached> e : instances.snapshot()) {
             Class<?> clazz = e.getKey();
             Cached cached = e.getValue();
             MetadataInfo info = registry.get(clazz);
             // Skip: null info, pattern-based, not editable, or config (user-managed)
             if (info == null || info.pattern || !info.editable || info.config) continue;
-            Path file = resolveFile(info, null);
-            saveGeneric(info, cached.value, null, file);
-
-            long lm = getLastModified(file);
-            instances.put(clazz, new Cached(cached.value, lm));
+            write(info, null, cached.value);
         }
 
         // pattern-based storages
-        for (Map.Entry<Class<?>, Map<String, Cached>> entry : patternInstances.entrySet()) {
+        for (Map.Entry<Class<?>, MetadataCache<String, Cached>> entry : patternInstances.entrySet()) {
             Class<?> clazz = entry.getKey();
             MetadataInfo info = registry.get(clazz);
             // Skip: null info, not pattern-based, not editable, or config (user-managed)
             if (info == null || !info.pattern || !info.editable || info.config) continue;
 
-            Map<String, Cached> perId = entry.getValue();
-            for (Map.Entry<String, Cached> idEntry : perId.entrySet()) {
-                String id = idEntry.getKey();
-                Cached cached = idEntry.getValue();
-
-                Path file = resolveFile(info, id);
-                saveGeneric(info, cached.value, id, file);
-
-                long lm = getLastModified(file);
-                perId.put(id, new Cached(cached.value, lm));
+            for (Map.Entry<String, Cached> idEntry : entry.getValue().snapshot()) {
+                write(info, idEntry.getKey(), idEntry.getValue().value);
             }
         }
+
+        for (Runnable retry : List.copyOf(failedWriteBacks.values())) {
+            retry.run();
+        }
     }
 
+    /**
+     * Returns the cached instance, loading it on first access. For {@code copyOnWrite} storages
+     * it is a shared read-only snapshot: never modify it, change it via {@code update(...)}.
+     */
     @SuppressWarnings("unchecked")
     public <T> T get(Class<T> clazz) {
         ensureRegistered(clazz);
@@ -228,22 +1125,19 @@ public final class DataHandler {
             if (cached != null) {
                 return (T) cached.value;
             }
-            Object value = loadGenericOrDefault(info, null, file);
-            long lm = getLastModified(file);
-            instances.put(clazz, new Cached(value, lm));
-            return (T) value;
+            String key = cacheKey(clazz, null);
+            return (T) loadGuarded(info, null, key, file,
+                    loaded -> instances.putIfAbsent(clazz, loaded, () -> pendingEvictions.get(key))).value;
         }
 
-        // config storage: check lastModified each time
-        long currentLastModified = getLastModified(file);
-        if (cached != null && cached.lastModified == currentLastModified) {
+        // config storage: kept current by the watcher, otherwise check lastModified each time
+        if (cached != null && (configWatcher != null || cached.lastModified == getLastModified(file))) {
             return (T) cached.value;
         }
 
-        Object value = loadGenericOrDefault(info, null, file);
-        long lm = getLastModified(file);
-        instances.put(clazz, new Cached(value, lm));
-        return (T) value;
+        Cached loaded = loadGenericOrDefault(info, null, file);
+        instances.put(clazz, loaded);
+        return (T) loaded.value;
     }
 
     public <T> void set(Class<T> clazz, T instance) {
@@ -255,9 +1149,20 @@ public final class DataHandler {
         if (!info.editable) {
             throw new IllegalStateException("Metadata " + clazz.getName() + " is read-only (editable=false).");
         }
+        if (info.copyOnWrite) {
+            replaceEntry(info, null, instance, false);
+            return;
+        }
         Path file = resolveFile(info, null);
         long lm = getLastModified(file);
-        instances.put(clazz, new Cached(instance, lm));
+        discardPendingEviction(clazz, null);
+        onRollback(() -> instances.remove(clazz));
+        logMutation(info, null, instance);
+        Cached previous = instances.peek(clazz);
+        instances.put(clazz, previous != null ? previous.changed(instance, lm) : new Cached(instance, lm, 0L, 0, true));
+        if ((writeBehind != null || inTransaction()) && !info.config) {
+            write(info, null, instance);
+        }
     }
 
     public <T> void set(Class<T> clazz, String id, T instance) {
@@ -273,17 +1178,61 @@ public final class DataHandler {
         if (!info.editable) {
             throw new IllegalStateException("Metadata " + clazz.getName() + " is read-only (editable=false).");
         }
+        if (info.copyOnWrite) {
+            replaceEntry(info, id, instance, false);
+            return;
+        }
         Path file = resolveFile(info, id);
         long lm = getLastModified(file);
-        patternInstances
-                .computeIfAbsent(clazz, k -> Collections.synchronizedMap(createLruCache(maxPatternCacheSize)))
-                .put(id, new Cached(instance, lm));
+        discardPendingEviction(clazz, id);
+        dropOffHeap(clazz, id);
+        onRollback(() -> clearCache(clazz, id));
+        logMutation(info, id, instance);
+        putChanged(info, id, instance, lm);
+        if ((writeBehind != null || inTransaction()) && !info.config) {
+            write(info, id, instance);
+        }
     }
 
     public <T> void set(Class<T> clazz, UUID uuid, T instance) {
         set(clazz, uuid.toString(), instance);
     }
 
+    /**
+     * Atomically replaces a singleton {@code copyOnWrite} storage.
+     *
+     * @see #update(Class, String, UnaryOperator)
+     */
+    public <T> T update(Class<T> clazz, UnaryOperator<T> operator) {
+        return updateEntry(clazz, null, operator);
+    }
+
+    /**
+     * Atomically replaces a pattern {@code copyOnWrite} storage: the operator receives a deep
+     * copy of the current instance and returns the new one (usually the modified copy), which
+     * is then swapped in unless another update got there first, in which case the operator
+     * runs again on a copy of the newer instance. It must therefore have no side effects.
+     * The copy is made by converting the instance to a JSON tree and back, which costs about
+     * as much as a serialize plus a parse; prefer few larger updates over many small ones.
+     * <p>
+     * Like {@code set(...)}, the change is written by {@link #saveMetadatas()}, or right away
+     * in write-behind mode and inside a transaction.
+     * </p>
+     *
+     * @return the new instance
+     */
+    public <T> T update(Class<T> clazz, String id, UnaryOperator<T> operator) {
+        return updateEntry(clazz, id, operator);
+    }
+
+    public <T> T update(Class<T> clazz, UUID uuid, UnaryOperator<T> operator) {
+        return updateEntry(clazz, uuid.toString(), operator);
+    }
+
+    /**
+     * Returns the cached instance of an id, loading it on first access. For {@code copyOnWrite}
+     * storages it is a shared read-only snapshot: never modify it, change it via {@code update(...)}.
+     */
     @SuppressWarnings("unchecked")
     public <T> T get(Class<T> clazz, String id) {
         ensureRegistered(clazz);
@@ -297,8 +1246,7 @@ public final class DataHandler {
         }
 
         Path file = resolveFile(info, id);
-        Map<String, Cached> perIdMap = patternInstances.computeIfAbsent(clazz,
-                k -> Collections.synchronizedMap(createLruCache(maxPatternCacheSize)));
+        MetadataCache<String, Cached> perIdMap = patternCache(clazz);
         Cached cached = perIdMap.get(id);
 
         if (!info.config) {
@@ -306,22 +1254,17 @@ public final class DataHandler {
             if (cached != null) {
                 return (T) cached.value;
             }
-            Object value = loadGenericOrDefault(info, id, file);
-            long lm = getLastModified(file);
-            perIdMap.put(id, new Cached(value, lm));
-            return (T) value;
+            return (T) loadShared(info, id, file, perIdMap).value;
         }
 
         // config-style pattern storage: auto reload when file changes
-        long currentLastModified = getLastModified(file);
-        if (cached != null && cached.lastModified == currentLastModified) {
+        if (cached != null && (configWatcher != null || cached.lastModified == getLastModified(file))) {
             return (T) cached.value;
         }
 
-        Object value = loadGenericOrDefault(info, id, file);
-        long lm = getLastModified(file);
-        perIdMap.put(id, new Cached(value, lm));
-        return (T) value;
+        Cached loaded = loadGenericOrDefault(info, id, file);
+        perIdMap.put(id, loaded);
+        return (T) loaded.value;
     }
 
     public <T> void save(Class<T> clazz, String id, T instance) {
@@ -337,89 +1280,385 @@ public final class DataHandler {
         if (!info.editable) {
             throw new IllegalStateException("Metadata " + clazz.getName() + " is read-only (editable=false).");
         }
+        if (info.copyOnWrite) {
+            replaceEntry(info, id, instance, true);
+            return;
+        }
 
         Path file = resolveFile(info, id);
-        saveGeneric(info, instance, id, file);
-
-        long lm = getLastModified(file);
-
-        patternInstances
-                .computeIfAbsent(clazz, k -> Collections.synchronizedMap(createLruCache(maxPatternCacheSize)))
-                .put(id, new Cached(instance, lm));
+        discardPendingEviction(clazz, id);
+        dropOffHeap(clazz, id);
+        onRollback(() -> clearCache(clazz, id));
+        logMutation(info, id, instance);
+        putChanged(info, id, instance, getLastModified(file));
+        write(info, id, instance);
     }
 
     public <T> T get(Class<T> clazz, UUID uuid) {
         return get(clazz, uuid.toString());
     }
 
-    public <T> void save(Class<T> clazz, UUID uuid, T instance) {
-        save(clazz, uuid.toString(), instance);
+    /**
+     * Loads the given pattern storages for one id on a background pool and puts them into
+     * the cache, so a later {@code get(clazz, id)} on the main thread is a cache hit.
+     * A {@code get} for an id that is still being prefetched waits for that load instead
+     * of reading the file a second time.
+     *
+     * @param id      the unique identifier
+     * @param classes pattern classes annotated with @Metadata
+     * @return a future that completes once all classes are cached
+     */
+    public CompletableFuture<Void> prefetch(String id, Class<?>... classes) {
+        CompletableFuture<?>[] futures = new CompletableFuture<?>[classes.length];
+        for (int i = 0; i < classes.length; i++) {
+            Class<?> clazz = classes[i];
+            futures[i] = CompletableFuture.runAsync(() -> get(clazz, id), loadPool());
+        }
+        return CompletableFuture.allOf(futures);
     }
 
-    public void registerClass(Class<?> c) {
-        Metadata metadata = c.getAnnotation(Metadata.class);
-        if (metadata == null) throw new IllegalArgumentException("Class " + c.getName() + " missing @Metadata");
-        MetadataInfo info = toInfo(c, metadata);
-        registry.put(c, info);
+    public CompletableFuture<Void> prefetch(UUID uuid, Class<?>... classes) {
+        return prefetch(uuid.toString(), classes);
     }
 
-    public void clearCache(Class<?> clazz) {
-        instances.remove(clazz);
-        patternInstances.remove(clazz);
+    /**
+     * Prefetches the given pattern storages for many ids, e.g. all online players after a reload.
+     *
+     * @see #prefetch(String, Class[])
+     */
+    public CompletableFuture<Void> prefetchAll(Collection<UUID> uuids, Class<?>... classes) {
+        return CompletableFuture.allOf(uuids.stream()
+                .map(uuid -> prefetch(uuid, classes))
+                .toArray(CompletableFuture[]::new));
     }
 
-    public void clearCache(Class<?> clazz, String id) {
-        Map<String, Cached> map = patternInstances.get(clazz);
-        if (map != null) map.remove(id);
+    public <T> void save(Class<T> clazz, UUID uuid, T instance) {
+        save(clazz, uuid.toString(), instance);
     }
 
-    public void clearCache(Class<?> clazz, UUID uuid) {
-        clearCache(clazz, uuid.toString());
+    /**
+     * Finds the ids of a pattern storage whose {@link Indexed} field lies within a range,
+     * e.g. all players with a balance of at least 1,000,000:
+     * {@code query(PlayerData.class, "balance", 1_000_000, null)}.
+     * <p>
+     * Answered from the index without loading any instance. If the index has not been
+     * built yet (first use, or after a crash), it is rebuilt from all stored instances first.
+     * </p>
+     *
+     * @param field the name of the indexed field
+     * @param from  the lowest value (inclusive), or null for no lower bound
+     * @param to    the highest value (inclusive), or null for no upper bound
+     * @return the matching ids in ascending order of the field's value
+     */
+    public List<String> query(Class<?> clazz, String field, Object from, Object to) {
+        return indexFor(clazz).range(field, from, to);
     }
 
-    // ---------- Internals ----------
-    private void validateMetadataObject(Object obj) {
-        if (obj == null) return;
+    /**
+     * Finds the ids of a pattern storage whose {@link Indexed} field value matches the predicate.
+     * Numbers are passed as Long or Double, enums and UUIDs as String.
+     *
+     * @return the matching ids in ascending order of the field's value
+     * @see #query(Class, String, Object, Object)
+     */
+    public List<String> query(Class<?> clazz, String field, Predicate<Object> predicate) {
+        return indexFor(clazz).filter(field, predicate);
+    }
 
-        Class<?> clazz = obj.getClass();
+    /**
+     * Returns the ids with the highest values of an {@link Indexed} field, e.g. for leaderboards.
+     *
+     * @param limit the maximum number of ids
+     * @return the ids, highest value first
+     */
+    public List<String> top(Class<?> clazz, String field, int limit) {
+        return indexFor(clazz).top(field, limit);
+    }
 
-        for (Field field : clazz.getDeclaredFields()) {
-            MetadataValidator ann = field.getAnnotation(MetadataValidator.class);
-            if (ann == null) continue;
+    /**
+     * Rebuilds the indexes of a class from all stored instances, e.g. after its files
+     * were edited by hand. Cached instances are indexed with their current values.
+     */
+    public void rebuildIndexes(Class<?> clazz) {
+        rebuild(registry.get(clazz), indexOf(clazz));
+    }
 
-            field.setAccessible(true);
-            Object value;
-            try {
-                value = field.get(obj);
-            } catch (IllegalAccessException e) {
-                throw new RuntimeException("Failed to access field '" + field.getName()
-                        + "' on " + clazz.getName(), e);
+    private MetadataIndex indexFor(Class<?> clazz) {
+        MetadataIndex index = indexOf(clazz);
+        if (!index.isBuilt()) {
+            synchronized (index) {
+                if (!index.isBuilt()) rebuild(registry.get(clazz), index);
             }
+        }
+        return index;
+    }
 
-            MetadataValueValidator<?> validator;
-            try {
-                validator = ann.value().getDeclaredConstructor().newInstance();
-            } catch (Exception e) {
-                throw new RuntimeException("Could not instantiate validator "
-                        + ann.value().getName() + " for field '" + field.getName()
-                        + "' on " + clazz.getName(), e);
-            }
+    private MetadataIndex indexOf(Class<?> clazz) {
+        ensureRegistered(clazz);
+        MetadataIndex index = indexes.get(clazz);
+        if (index == null) {
+            throw new IllegalStateException("Class " + clazz.getName() + " has no @Indexed fields.");
+        }
+        return index;
+    }
 
-            @SuppressWarnings("unchecked")
-            MetadataValueValidator<Object> typed = (MetadataValueValidator<Object>) validator;
+    private void rebuild(MetadataInfo info, MetadataIndex index) {
+        index.rebuild(listIds(info), id -> {
+            Cached cached = cachedEntry(info, id);
+            return cached != null ? cached.value : loadGenericOrDefault(info, id, resolveFile(info, id)).value;
+        });
+    }
 
-            try {
-                typed.validate(value, field, clazz, ann);
-            } catch (MetadataValidationException ex) {
-                throw new RuntimeException(
-                        "Validation failed for field '" + field.getName()
-                                + "' of " + clazz.getSimpleName() + ": " + ex.getMessage(),
-                        ex
-                );
+    private void persistIndexes() {
+        Lock gate = writeGate.readLock();
+        gate.lock();
+        try {
+            for (MetadataIndex index : indexes.values()) {
+                index.persist(JSON_MAPPER);
             }
+        } finally {
+            gate.unlock();
         }
     }
 
+    /**
+     * @return the ids of all stored instances of a pattern storage
+     */
+    private Set<String> listIds(MetadataInfo info) {
+        try {
+            if (usesStore(info)) {
+                return store.keys(namespace(info));
+            }
+            if (info.storage == MetadataStorage.LOG) {
+                return logFor(info).keys();
+            }
+            Path dir = directoryOf(info);
+            if (!Files.isDirectory(dir)) return Set.of();
+            try (Stream<Path> files = listFiles(info, dir, info.extension())) {
+                return files.map(f -> idFromFileName(info, f.getFileName().toString(), info.extension()))
+                        .filter(Objects::nonNull)
+                        .collect(Collectors.toSet());
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to list ids of " + info.clazz.getName(), e);
+        }
+    }
+
+    public void registerClass(Class<?> c) {
+        Metadata metadata = c.getAnnotation(Metadata.class);
+        if (metadata == null) throw new IllegalArgumentException("Class " + c.getName() + " missing @Metadata");
+        MetadataInfo info = toInfo(c, metadata);
+        MetadataIndex index = createIndex(info);
+        registry.put(c, info);
+        onRegistered(info, index);
+    }
+
+    public void clearCache(Class<?> clazz) {
+        instances.remove(clazz);
+        patternInstances.remove(clazz);
+        OffHeapCache cold = offHeap;
+        if (cold != null) cold.removePrefix(cacheKey(clazz, ""));
+    }
+
+    public void clearCache(Class<?> clazz, String id) {
+        MetadataCache<String, Cached> cache = patternInstances.get(clazz);
+        if (cache != null) cache.remove(id);
+        dropOffHeap(clazz, id);
+    }
+
+    public void clearCache(Class<?> clazz, UUID uuid) {
+        clearCache(clazz, uuid.toString());
+    }
+
+    /**
+     * Converts existing files of a storage from another format into the format declared
+     * in its {@code @Metadata} annotation (e.g. from JSON to SMILE, or from uncompressed to
+     * compressed files of the same format), deleting the old files.
+     * Converted entries are evicted from the cache. Run this once before the storage is used.
+     *
+     * @param clazz the class annotated with @Metadata
+     * @param from  the format the existing files were written in
+     * @return the number of converted files
+     */
+    public int convertFormat(Class<?> clazz, MetadataType from) {
+        ensureRegistered(clazz);
+        MetadataInfo info = registry.get(clazz);
+        if (info == null) {
+            throw new IllegalStateException("Class " + clazz.getName() + " is not annotated with @Metadata.");
+        }
+        boolean toFiles = info.storage == MetadataStorage.FILES && !usesStore(info);
+        if (from == info.type && toFiles && info.compression == MetadataCompression.NONE) return 0;
+
+        Path dir = info.path == null || info.path.isEmpty() ? baseDir : baseDir.resolve(info.path);
+        if (!Files.isDirectory(dir)) return 0;
+
+        List<Path> sources;
+        try (Stream<Path> files = listFiles(info, dir, from.extension())) {
+            sources = files.filter(f -> idFromFileName(info, f.getFileName().toString(), from.extension()) != null).toList();
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to list " + dir, e);
+        }
+
+        int converted = 0;
+        Lock gate = writeGate.readLock();
+        gate.lock();
+        try {
+            for (Path source : sources) {
+                String id = idFromFileName(info, source.getFileName().toString(), from.extension());
+                String idOrNull = info.pattern ? id : null;
+                try {
+                    Object value;
+                    if (info.incremental) {
+                        // a file in the old format may still have a journal
+                        byte[] raw = Files.readAllBytes(source);
+                        JsonNode tree = mapperFor(from).readTree(raw);
+                        tree = replayJournal(journalFile(source), tree, contentHash(raw)).tree();
+                        value = info.reader.readValue(upgrade(info, tree));
+                    } else if (info.version > 0) {
+                        value = info.reader.readValue(upgrade(info, mapperFor(from).readTree(source.toFile())));
+                    } else {
+                        value = mapperFor(from).readValue(source.toFile(), info.clazz);
+                    }
+                    writeBytes(info, serialize(info, value, idOrNull), idOrNull, resolveFile(info, idOrNull), null);
+                    changed(source);
+                    changed(journalFile(source));
+                    deleteJournal(source);
+                    if (!toFiles || !source.equals(resolveFile(info, idOrNull))) {
+                        Files.delete(source);
+                    }
+                    converted++;
+                } catch (IOException e) {
+                    throw new RuntimeException("Failed to convert " + source + " to " + info.type, e);
+                }
+            }
+        } finally {
+            gate.unlock();
+        }
+        clearCache(clazz);
+        return converted;
+    }
+
+    /**
+     * Registers the step that upgrades documents of a versioned class from {@code fromVersion}
+     * to {@code fromVersion + 1}. Steps run in order on load (and in {@link #migrateAll}) for
+     * every document older than the class's {@code @Metadata(version)}; versions without a
+     * registered step, e.g. ones that only added fields, are skipped. A step receives the
+     * document as a tree and returns the upgraded tree (usually the same node, modified).
+     * Register all steps before the class is first loaded.
+     *
+     * @param clazz       the class annotated with @Metadata(version = ...)
+     * @param fromVersion the version the step upgrades from, 0 for documents written before versioning
+     * @param migration   the upgrade step
+     */
+    public void registerMigration(Class<?> clazz, int fromVersion, UnaryOperator<ObjectNode> migration) {
+        ensureRegistered(clazz);
+        MetadataInfo info = registry.get(clazz);
+        if (info == null) {
+            throw new IllegalStateException("Class " + clazz.getName() + " is not annotated with @Metadata.");
+        }
+        if (fromVersion < 0 || fromVersion >= info.version) {
+            throw new IllegalArgumentException("Migration from version " + fromVersion + " of " + clazz.getName()
+                    + " is outside its versions 0.." + info.version);
+        }
+        migrations.computeIfAbsent(clazz, k -> new ConcurrentHashMap<>()).put(fromVersion, Objects.requireNonNull(migration));
+    }
+
+    /**
+     * Upgrades every stored document of a versioned class to the current version in parallel on the
+     * load pool and writes them back, so the upgrade is not paid for on each first load. Entries that
+     * are already cached were upgraded when they were loaded and are skipped. Meant for
+     * maintenance: run it before the storage is used, e.g. in onEnable before players can join.
+     *
+     * @param clazz the class annotated with @Metadata(version = ...)
+     * @return the number of upgraded documents
+     */
+    public int migrateAll(Class<?> clazz) {
+        ensureRegistered(clazz);
+        MetadataInfo info = registry.get(clazz);
+        if (info == null) {
+            throw new IllegalStateException("Class " + clazz.getName() + " is not annotated with @Metadata.");
+        }
+        if (info.version == 0 || !info.editable) return 0;
+
+        Set<String> ids = info.pattern ? listIds(info) : Set.of("");
+        AtomicInteger migrated = new AtomicInteger();
+        Map<String, Throwable> failures = new ConcurrentHashMap<>();
+        // blocking file I/O: run on the load pool, not the common ForkJoinPool
+        ExecutorService pool = loadPool();
+        CompletableFuture.allOf(ids.stream().map(id -> CompletableFuture.runAsync(() -> {
+            String idOrNull = info.pattern ? id : null;
+            try {
+                if (migrateStored(info, idOrNull)) migrated.incrementAndGet();
+            } catch (IOException | RuntimeException e) {
+                failures.put(id, e);
+            }
+        }, pool)).toArray(CompletableFuture[]::new)).join();
+
+        if (!failures.isEmpty()) {
+            Iterator<Map.Entry<String, Throwable>> it = failures.entrySet().iterator();
+            Map.Entry<String, Throwable> first = it.next();
+            RuntimeException error = new RuntimeException("Failed to migrate " + failures.size() + " of " + ids.size()
+                    + " " + clazz.getSimpleName() + " documents (first id=" + first.getKey() + ")", first.getValue());
+            it.forEachRemaining(e -> error.addSuppressed(e.getValue()));
+            throw error;
+        }
+        LOGGER.info("Migrated " + migrated.get() + " of " + ids.size() + " " + clazz.getSimpleName()
+                + " documents to version " + info.version);
+        return migrated.get();
+    }
+
+    /**
+     * @return true if the stored document was older than the current version and has been upgraded
+     */
+    private boolean migrateStored(MetadataInfo info, String idOrNull) throws IOException {
+        if (cachedEntry(info, idOrNull) != null || pendingEvictions.containsKey(cacheKey(info.clazz, idOrNull))) {
+            return false;
+        }
+        Path file = resolveFile(info, idOrNull);
+        if (!unsharded.isEmpty() && unsharded.contains(info.clazz)) {
+            moveToShard(info, idOrNull, file);
+        }
+        byte[] raw = readStored(info, idOrNull, file);
+        if (raw == null) return false;
+        // parsed once: the version check, the upgrade and the typed read all work on this tree
+        JsonNode tree = mapperFor(info.type).readTree(raw);
+        if (SchemaVersions.of(tree) == info.version) return false;
+
+        Cached loaded = journaled(info)
+                ? loadIncremental(info, idOrNull, file, raw, tree, true)
+                : loadDocument(info, idOrNull, file, raw, tree, true);
+        MetadataIndex index = indexes.get(info.clazz);
+        if (index != null) index.update(idOrNull, loaded.value);
+        return true;
+    }
+
+    /**
+     * Runs the registered migration steps on a document older than the class's version.
+     *
+     * @return the upgraded document without the version property
+     * @throws IOException if the document was written by a newer version of the class
+     */
+    private JsonNode upgrade(MetadataInfo info, JsonNode tree) throws IOException {
+        if (info.version == 0 || !(tree instanceof ObjectNode node)) return tree;
+        int stored = SchemaVersions.of(node);
+        if (stored > info.version) {
+            throw new IOException("Document has version " + stored + ", but " + info.clazz.getName()
+                    + " is only at version " + info.version);
+        }
+        Map<Integer, UnaryOperator<ObjectNode>> steps = migrations.getOrDefault(info.clazz, Map.of());
+        for (int version = stored; version < info.version; version++) {
+            UnaryOperator<ObjectNode> step = steps.get(version);
+            if (step != null) node = step.apply(node);
+        }
+        node.remove(SchemaVersions.FIELD);
+        return node;
+    }
+
+    // ---------- Internals ----------
+    private void validateMetadataObject(MetadataInfo info, Object obj) {
+        info.validationPlan.validate(obj);
+    }
+
 
 
 
@@ -438,55 +1677,1070 @@ public final class DataHandler {
         Metadata metadata = c.getAnnotation(Metadata.class);
         if (metadata == null) return;
         MetadataInfo info = toInfo(c, metadata);
-        registry.put(c, info);
+        MetadataIndex index = createIndex(info);
+        if (registry.putIfAbsent(c, info) == null) {
+            onRegistered(info, index);
+        }
+    }
+
+    private MetadataIndex createIndex(MetadataInfo info) {
+        MetadataIndex index = MetadataIndex.create(info.clazz,
+                directoryOf(info).resolve(info.clazz.getSimpleName() + ".idx"), JSON_MAPPER, writeGate.readLock());
+        if (index != null && !info.pattern) {
+            throw new IllegalArgumentException("Class " + info.clazz.getName()
+                    + " has @Indexed fields, which requires a pattern name ({id})");
+        }
+        return index;
+    }
+
+    private void onRegistered(MetadataInfo info, MetadataIndex index) {
+        if (index != null) {
+            indexes.put(info.clazz, index);
+        } else {
+            indexes.remove(info.clazz);
+        }
+        ConfigWatcher watcher = configWatcher;
+        if (watcher != null && info.config) {
+            watcher.watch(directoryOf(info));
+        }
+        replayWal(info);
+        if (info.sharded && !usesStore(info) && unsharded.add(info.clazz)) {
+            loadPool().execute(() -> moveToShards(info));
+        }
+    }
+
+    /**
+     * Moves all files of a sharded storage that are still in the flat layout into their
+     * shard directories. Runs in the background after registration; entries accessed
+     * before it gets to them are moved on load.
+     */
+    private void moveToShards(MetadataInfo info) {
+        Path dir = directoryOf(info);
+        try {
+            if (Files.isDirectory(dir)) {
+                List<String> ids;
+                try (Stream<Path> files = Files.list(dir)) {
+                    ids = files.map(f -> idFromFileName(info, f.getFileName().toString(), info.extension()))
+                            .filter(Objects::nonNull)
+                            .toList();
+                }
+                for (String id : ids) {
+                    moveToShard(info, id, resolveFile(info, id));
+                }
+                if (!ids.isEmpty()) {
+                    LOGGER.info("Moved " + ids.size() + " " + info.clazz.getSimpleName() + " files into shard directories");
+                }
+            }
+            unsharded.remove(info.clazz);
+        } catch (IOException | RuntimeException e) {
+            // the class stays in unsharded, so remaining files are still moved on load
+            LOGGER.log(Level.WARNING, "Failed to move " + info.clazz.getName() + " files into shard directories", e);
+        }
+    }
+
+    /**
+     * Moves the flat-layout file of an id (and its journal) to its shard location. If the
+     * shard file already exists it was saved after the switch and wins over the old file.
+     * <p>
+     * Saves of an id that was never loaded do not take the entry lock and may write the
+     * shard file at any time, so the old file is never renamed over it: it is linked to the
+     * new location, which fails if the target exists, and only then removed.
+     * </p>
+     */
+    private void moveToShard(MetadataInfo info, String id, Path file) throws IOException {
+        Path flat = directoryOf(info).resolve(file.getFileName());
+        Lock gate = writeGate.readLock();
+        gate.lock();
+        try {
+            synchronized (entryLock(cacheKey(info.clazz, id))) {
+                if (!Files.exists(flat)) return;
+                for (Path moved : List.of(flat, journalFile(flat), file, journalFile(file))) {
+                    changed(moved);
+                }
+                Files.createDirectories(file.getParent());
+                boolean journaled = Files.exists(journalFile(flat));
+                // the journal goes first, a save that lands in between replaces the file and deletes it
+                if ((!journaled || moveIfAbsent(journalFile(flat), journalFile(file))) && moveIfAbsent(flat, file)) {
+                    return;
+                }
+                if (journaled) Files.deleteIfExists(journalFile(file));
+                Files.deleteIfExists(journalFile(flat));
+                Files.delete(flat);
+            }
+        } finally {
+            gate.unlock();
+        }
+    }
+
+    /**
+     * Moves a file unless the target exists, without the window between check and rename.
+     *
+     * @return false if the target exists, in which case nothing was moved
+     */
+    private static boolean moveIfAbsent(Path source, Path target) throws IOException {
+        try {
+            Files.createLink(target, source);
+        } catch (FileAlreadyExistsException e) {
+            return false;
+        } catch (UnsupportedOperationException | FileSystemException e) {
+            // no hard links on this file system; move refuses an existing target, checked non-atomically
+            try {
+                Files.move(source, target);
+                return true;
+            } catch (FileAlreadyExistsException exists) {
+                return false;
+            }
+        }
+        Files.delete(source);
+        return true;
+    }
+
+    /**
+     * @return the files in a storage directory, plus those in its shard subdirectories
+     * ({@code <2 hex>/<2 hex>/}) for sharded storages. Other subdirectories, which may
+     * belong to other classes, are not entered, and files in a shard directory that is not
+     * the one of their id are skipped.
+     */
+    private Stream<Path> listFiles(MetadataInfo info, Path dir, String extension) throws IOException {
+        if (!info.sharded) return Files.list(dir);
+        List<Path> files = new ArrayList<>();
+        Files.walkFileTree(dir, Set.of(), 3, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path d, BasicFileAttributes attrs) {
+                return d.equals(dir) || SHARD_DIR.matcher(d.getFileName().toString()).matches()
+                        ? FileVisitResult.CONTINUE : FileVisitResult.SKIP_SUBTREE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path f, BasicFileAttributes attrs) {
+                Path relative = dir.relativize(f);
+                if (!attrs.isRegularFile()) return FileVisitResult.CONTINUE;
+                if (relative.getNameCount() == 1) {
+                    files.add(f);
+                } else if (relative.getNameCount() == 3) {
+                    String id = idFromFileName(info, f.getFileName().toString(), extension);
+                    if (id != null && shardOf(id).equals(relative.getName(0) + "/" + relative.getName(1) + "/")) {
+                        files.add(f);
+                    }
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return files.stream();
+    }
+
+    private Path directoryOf(MetadataInfo info) {
+        return info.path == null || info.path.isEmpty() ? baseDir : baseDir.resolve(info.path);
+    }
+
+    /**
+     * Called by the config watcher for a created, modified or deleted file.
+     */
+    private void reloadChangedConfig(Path file) {
+        String fileName = file.getFileName().toString();
+        for (MetadataInfo info : registry.values()) {
+            if (!info.config || !directoryOf(info).toAbsolutePath().normalize().equals(file.getParent())) continue;
+            String id = idFromFileName(info, fileName, info.extension());
+            if (id == null) continue;
+            reloadConfig(info, info.pattern ? id : null);
+        }
+    }
+
+    /**
+     * Polling fallback of the config watcher: re-checks every cached config.
+     */
+    private void reloadAllConfigs() {
+        for (MetadataInfo info : registry.values()) {
+            if (!info.config) continue;
+            if (!info.pattern) {
+                reloadConfig(info, null);
+                continue;
+            }
+            MetadataCache<String, Cached> cache = patternInstances.get(info.clazz);
+            if (cache == null) continue;
+            for (Map.Entry<String, Cached> entry : cache.snapshot()) {
+                reloadConfig(info, entry.getKey());
+            }
+        }
+    }
+
+    /**
+     * Re-parses a cached config if its file changed. Entries that are not cached are
+     * left alone, they are loaded on the next get.
+     */
+    private void reloadConfig(MetadataInfo info, String idOrNull) {
+        MetadataCache<String, Cached> cache = idOrNull == null ? null : patternInstances.get(info.clazz);
+        Cached current = idOrNull == null ? instances.peek(info.clazz) : cache == null ? null : cache.peek(idOrNull);
+        if (current == null) return;
+        Path file = resolveFile(info, idOrNull);
+        if (current.lastModified == getLastModified(file)) return;
+
+        Cached loaded = loadGenericOrDefault(info, idOrNull, file);
+        // Only replace the entry we compared against, a concurrent set() wins
+        if (idOrNull == null) {
+            instances.computeIfPresent(info.clazz, (k, c) -> c == current ? loaded : c);
+        } else {
+            cache.computeIfPresent(idOrNull, (k, c) -> c == current ? loaded : c);
+        }
     }
 
     private MetadataInfo toInfo(Class<?> c, Metadata metadata) {
         String subDir = metadata.path().isEmpty() ? "" : metadata.path();
         String nameTemplate = metadata.name().isEmpty() ? c.getSimpleName() : metadata.name();
         boolean pattern = nameTemplate.contains("{id}");
+        if (metadata.storage() == MetadataStorage.LOG && (!pattern || metadata.config())) {
+            throw new IllegalArgumentException("Class " + c.getName()
+                    + " uses storage=LOG, which requires a pattern name ({id}) and config=false");
+        }
+        if (metadata.incremental() && metadata.storage() != MetadataStorage.FILES) {
+            throw new IllegalArgumentException("Class " + c.getName() + " uses incremental=true, which requires storage=FILES");
+        }
+        if (metadata.compression() != MetadataCompression.NONE && (metadata.config() || metadata.incremental())) {
+            throw new IllegalArgumentException("Class " + c.getName()
+                    + " uses compression, which is not supported for configs and incremental storages");
+        }
+        if (metadata.sharded() && (!pattern || metadata.config() || metadata.storage() != MetadataStorage.FILES)) {
+            throw new IllegalArgumentException("Class " + c.getName()
+                    + " uses sharded=true, which requires a pattern name ({id}), storage=FILES and config=false");
+        }
 
-        return new MetadataInfo(c, metadata.type(), subDir, nameTemplate, pattern, metadata.editable(), metadata.autoMigrate(), metadata.config());
+        return new MetadataInfo(c, metadata.type(), subDir, nameTemplate, pattern, metadata.editable(),
+                metadata.autoMigrate(), metadata.config(), metadata.storage(), metadata.incremental(),
+                metadata.copyOnWrite(), metadata.pretty(), metadata.sharded(), metadata.compression(),
+                metadata.version(), mapperFor(metadata.type()));
     }
 
     private ObjectMapper mapperFor(MetadataType type) {
-        return type == MetadataType.YAML ? YAML_MAPPER : JSON_MAPPER;
+        return switch (type) {
+            case YAML -> YAML_MAPPER;
+            case SMILE -> SMILE_MAPPER;
+            default -> JSON_MAPPER;
+        };
+    }
+
+    private Cached loadGenericOrDefault(MetadataInfo info, String idOrNull, Path filePath) {
+        Cached loaded = loadEntry(info, idOrNull, filePath, info.autoMigrate);
+        MetadataIndex index = indexes.get(info.clazz);
+        if (index != null) index.update(idOrNull, loaded.value);
+        return loaded;
     }
 
-    private Object loadGenericOrDefault(MetadataInfo info, String idOrNull, Path filePath) {
+    /**
+     * @param saveMigrated whether a document upgraded to the current schema version is written back
+     */
+    private Cached loadEntry(MetadataInfo info, String idOrNull, Path filePath, boolean saveMigrated) {
         try {
-            Files.createDirectories(filePath.getParent());
+            if (!unsharded.isEmpty() && unsharded.contains(info.clazz)) {
+                moveToShard(info, idOrNull, filePath);
+            }
             ObjectMapper mapper = mapperFor(info.type);
-            if(!Files.exists(filePath)) {
+            OffHeapCache cold = offHeap;
+            byte[] raw = cold != null && keepsOffHeap(info, idOrNull) ? cold.take(cacheKey(info.clazz, idOrNull)) : null;
+            if (raw == null && !info.editable && info.storage == MetadataStorage.FILES && !usesStore(info)
+                    && info.compression == MetadataCompression.NONE && info.version == 0) {
+                Cached streamed = loadStreamed(info, filePath);
+                if (streamed != null) return streamed;
+            }
+            if (raw == null) raw = readStored(info, idOrNull, filePath);
+            if(raw == null) {
                 // File doesn't exist - create with defaults
                 Object def = newDefault(info.clazz);
-                validateMetadataObject(def);
+                validateMetadataObject(info, def);
+                long hash = 0L;
+                int size = 0;
+                JournalState journal = null;
                 if(info.editable) {
-                    mapper.writerWithDefaultPrettyPrinter().writeValue(filePath.toFile(), def);
+                    byte[] bytes = serialize(info, def, idOrNull);
+                    writeBytes(info, bytes, idOrNull, filePath, null);
+                    hash = contentHash(bytes);
+                    size = bytes.length;
+                    if (journaled(info)) journal = new JournalState(mapper.valueToTree(def), 0L);
                 }
-                return def;
+                return new Cached(def, getLastModified(filePath), hash, size, false, journal);
             }
-            // File exists - read directly (Jackson uses field defaults for missing properties)
-            Object loaded = mapper.readValue(filePath.toFile(), info.clazz);
-            validateMetadataObject(loaded);
-            if(info.autoMigrate && info.editable) {
-                // Only re-save to add new fields that don't exist in the file yet
-                mapper.writerWithDefaultPrettyPrinter().writeValue(filePath.toFile(), loaded);
+            if (journaled(info)) {
+                return loadIncremental(info, idOrNull, filePath, raw, mapper.readTree(raw), saveMigrated);
             }
-            return loaded;
+            JsonNode tree = info.version > 0 && SchemaVersions.peek(mapper, raw) != info.version
+                    ? mapper.readTree(raw) : null;
+            return loadDocument(info, idOrNull, filePath, raw, tree, saveMigrated);
         } catch (IOException e) {
             throw new RuntimeException("Failed to load " + info.type + " for " + info.clazz.getName() + " (id=" + idOrNull + ")", e);
         }
     }
 
-    private void saveGeneric(MetadataInfo info, Object obj, String idOrNull, Path filePath) {
+    /**
+     * Reads a stored (non-incremental) document.
+     *
+     * @param tree the already parsed document if it has to be upgraded, or null to read {@code raw} directly
+     */
+    private Cached loadDocument(MetadataInfo info, String idOrNull, Path filePath, byte[] raw, JsonNode tree,
+                                boolean saveMigrated) throws IOException {
+        // File exists - read directly (Jackson uses field defaults for missing properties)
+        Object loaded;
+        boolean migrated = false;
+        if (tree != null) {
+            migrated = SchemaVersions.of(tree) != info.version;
+            loaded = info.reader.readValue(upgrade(info, tree));
+        } else {
+            loaded = info.reader.readValue(raw);
+        }
+        validateMetadataObject(info, loaded);
+        long hash = contentHash(raw);
+        int size = raw.length;
+        // Versioned classes are only re-saved when they were upgraded
+        if(info.editable && (info.version > 0 ? migrated && saveMigrated : info.autoMigrate)) {
+            // Only re-save to add new fields that don't exist in the file yet
+            byte[] bytes = serialize(info, loaded, idOrNull);
+            long migratedHash = contentHash(bytes);
+            if (migratedHash != hash) {
+                writeBytes(info, bytes, idOrNull, filePath, null);
+                hash = migratedHash;
+                size = bytes.length;
+            }
+        }
+        return new Cached(loaded, getLastModified(filePath), hash, size, false);
+    }
+
+    /**
+     * Writes an instance either directly or through the write-behind queue and refreshes
+     * the cached lastModified afterwards.
+     */
+    private void write(MetadataInfo info, String idOrNull, Object obj) {
+        write(info, idOrNull, obj, false);
+    }
+
+    private void write(MetadataInfo info, String idOrNull, Object obj, boolean foldJournal) {
+        Path file = resolveFile(info, idOrNull);
+        MetadataIndex index = indexes.get(info.clazz);
+        if (index != null) index.update(idOrNull, obj);
+        Runnable task = journaled(info) ? () -> writeIncremental(info, idOrNull, obj, file, foldJournal) : () -> {
+            byte[] bytes = serialize(info, obj, idOrNull);
+            long hash = contentHash(bytes);
+            Cached current = cachedEntry(info, idOrNull);
+            if (current != null && current.value == obj && !current.dirty && current.contentHash == hash) {
+                skippedWrites.increment();
+                return;
+            }
+            writeBytes(info, bytes, idOrNull, file, () -> markWritten(info, idOrNull, obj, file, hash, bytes.length, null));
+        };
+        WriteBehindQueue queue = writeBehind;
+        if (queue != null && !inTransaction()) {
+            queue.enqueue(file, task);
+        } else {
+            task.run();
+        }
+    }
+
+    /**
+     * Runs a write-behind batch. A failing write does not stop the others; the failures are
+     * rethrown afterwards so the queue reports them from its next flush.
+     */
+    private void writeBatch(List<Runnable> batch) {
+        inWriteBatch(() -> {
+            RuntimeException failure = null;
+            for (Runnable task : batch) {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    if (failure == null) failure = e;
+                    else failure.addSuppressed(e);
+                }
+            }
+            if (failure != null) throw failure;
+        });
+    }
+
+    /**
+     * Runs the body with a shared {@link FileWriteBatch} so that all writes it performs
+     * are committed together.
+     */
+    private void inWriteBatch(Runnable body) {
+        if (currentBatch.get() != null) {
+            body.run();
+            return;
+        }
+        Lock gate = writeGate.readLock();
+        gate.lock();
+        try {
+            FileWriteBatch batch = new FileWriteBatch(atomicWrites, batchedFsync);
+            currentBatch.set(batch);
+            RuntimeException failure = null;
+            try {
+                body.run();
+            } catch (RuntimeException e) {
+                failure = e;
+            } finally {
+                currentBatch.remove();
+            }
+            try {
+                batch.commit();
+            } catch (IOException e) {
+                RuntimeException commitFailure = new RuntimeException("Failed to commit batched writes", e);
+                if (failure == null) failure = commitFailure;
+                else failure.addSuppressed(commitFailure);
+            }
+            if (failure != null) throw failure;
+        } finally {
+            gate.unlock();
+        }
+    }
+
+    /**
+     * Loads a pattern entry that is not cached yet. Concurrent loads of the same id share
+     * one read; an entry set by another thread in the meantime wins over the loaded one.
+     */
+    private Cached loadShared(MetadataInfo info, String id, Path file, MetadataCache<String, Cached> perIdMap) {
+        String key = cacheKey(info.clazz, id);
+        Cached pending = pendingEvictions.get(key);
+        if (pending != null) {
+            // evicted but not yet written back: serve the in-memory instance
+            Cached existing = perIdMap.putIfAbsent(id, pending);
+            return existing != null ? existing : pending;
+        }
+        CompletableFuture<Cached> own = new CompletableFuture<>();
+        CompletableFuture<Cached> running = loading.putIfAbsent(key, own);
+        if (running != null) {
+            try {
+                return running.join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException cause) throw cause;
+                throw e;
+            }
+        }
+        try {
+            Cached result = loadGuarded(info, id, key, file,
+                    loaded -> perIdMap.putIfAbsent(id, loaded, () -> pendingEvictions.get(key)));
+            own.complete(result);
+            return result;
+        } catch (RuntimeException e) {
+            own.completeExceptionally(e);
+            throw e;
+        } finally {
+            loading.remove(key, own);
+        }
+    }
+
+    /**
+     * Reads an entry from disk and caches it. Holding the entry lock keeps a write-back from
+     * landing between the read and the insert, and {@code cache} re-checks
+     * {@code pendingEvictions} under the segment lock, so an entry evicted with unsaved changes
+     * meanwhile wins over the older file contents.
+     */
+    private Cached loadGuarded(MetadataInfo info, String idOrNull, String key, Path file,
+                               Function<Cached, Cached> cache) {
+        // gate before entry lock, the order write-backs take them in
+        Lock gate = writeGate.readLock();
+        gate.lock();
+        try {
+            synchronized (entryLock(key)) {
+                Cached pending = pendingEvictions.get(key);
+                return cache.apply(pending != null ? pending : loadGenericOrDefault(info, idOrNull, file));
+            }
+        } finally {
+            gate.unlock();
+        }
+    }
+
+    private static String cacheKey(Class<?> clazz, String idOrNull) {
+        return clazz.getName() + '\0' + (idOrNull == null ? "" : idOrNull);
+    }
+
+    private Object entryLock(String key) {
+        return entryLocks[(key.hashCode() & 0x7fffffff) % entryLocks.length];
+    }
+
+    /**
+     * Runs under the cache's segment lock while an entry is evicted: registers it as pending
+     * before the lock is released, so a concurrent get() finds it there instead of reloading
+     * the file, which does not have its unsaved changes yet.
+     */
+    private void onEvicting(Class<?> clazz, String idOrNull, Cached cached) {
+        MetadataInfo info = registry.get(clazz);
+        if (info == null || info.config || !info.editable) return;
+        pendingEvictions.put(cacheKey(clazz, idOrNull), cached);
+    }
+
+    /**
+     * Hands an evicted entry to the background writer so unsaved edits are not lost.
+     * Until the write-back is done, the entry is served from {@code pendingEvictions}.
+     */
+    private void onEvicted(Class<?> clazz, String idOrNull, Cached cached) {
+        MetadataEvictionListener listener = evictionListener;
+        if (listener != null) {
+            try {
+                listener.onEviction(clazz, idOrNull, cached.value, cached.dirty);
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Eviction listener failed for " + clazz.getName(), e);
+            }
+        }
+        MetadataInfo info = registry.get(clazz);
+        if (info == null || info.config) return;
+        if (!info.editable) {
+            // read-only entries are never written back, serialize them for the off-heap tier here
+            if (offHeap != null && keepsOffHeap(info, idOrNull)) {
+                evictionWriter().execute(() -> moveOffHeap(info, idOrNull, cached.value));
+            }
+            return;
+        }
+
+        String key = cacheKey(clazz, idOrNull);
+        if (pendingEvictions.get(key) != cached) return; // replaced via set/save meanwhile
+        Path file = resolveFile(info, idOrNull);
+        Runnable task = () -> writeBack(info, idOrNull, key, cached, file);
+        WriteBehindQueue queue = writeBehind;
+        if (queue != null) {
+            queue.enqueue(file, task);
+        } else {
+            evictionWriter().execute(task);
+        }
+    }
+
+    private void writeBack(MetadataInfo info, String idOrNull, String key, Cached cached, Path file) {
+        Lock gate = writeGate.readLock();
+        gate.lock();
+        try {
+            synchronized (entryLock(key)) {
+                failedWriteBacks.remove(key);
+                if (pendingEvictions.get(key) != cached) return; // replaced via set/save meanwhile
+                try {
+                    byte[] bytes = serialize(info, cached.value, idOrNull);
+                    OffHeapCache cold = offHeap;
+                    if (cold != null && keepsOffHeap(info, idOrNull)) {
+                        cold.put(key, bytes);
+                    }
+                    boolean journaled = journaled(info);
+                    if (!cached.dirty && unchangedOnDisk(info, cached, bytes, journaled)) {
+                        skippedWrites.increment();
+                        pendingEvictions.remove(key, cached);
+                        return;
+                    }
+                    dirtyEvictions.increment();
+                    // a full rewrite: drop the journal like a fold does, or it is replayed onto the new file
+                    writeBytes(info, bytes, idOrNull, file, () -> {
+                        if (journaled) deleteJournal(file);
+                        pendingEvictions.remove(key, cached);
+                    });
+                } catch (RuntimeException e) {
+                    // keep it pending so the next get() still sees the unsaved instance
+                    LOGGER.log(Level.SEVERE, "Failed to write back evicted " + info.clazz.getName()
+                            + " (id=" + idOrNull + ")", e);
+                    failedWriteBacks.put(key, () -> writeBack(info, idOrNull, key, cached, file));
+                }
+            }
+        } finally {
+            gate.unlock();
+        }
+    }
+
+    /**
+     * For incremental storages the data file is only the base; what is on disk is the base
+     * with the journal replayed, so the instance is compared with that instead.
+     */
+    private boolean unchangedOnDisk(MetadataInfo info, Cached cached, byte[] bytes, boolean journaled) {
+        if (!journaled) return contentHash(bytes) == cached.contentHash;
+        return cached.journal != null && cached.journal.tree().equals(mapperFor(info.type).valueToTree(cached.value));
+    }
+
+    /**
+     * Pattern entries of storages whose stored bytes are exactly the serialized instance.
+     * Incremental storages are excluded, their data file is only the base of the journal.
+     */
+    private boolean keepsOffHeap(MetadataInfo info, String idOrNull) {
+        return idOrNull != null && !info.config && !journaled(info);
+    }
+
+    private void moveOffHeap(MetadataInfo info, String idOrNull, Object value) {
+        OffHeapCache cold = offHeap;
+        if (cold == null) return;
+        String key = cacheKey(info.clazz, idOrNull);
+        synchronized (entryLock(key)) {
+            if (cachedEntry(info, idOrNull) != null) return; // loaded again meanwhile
+            cold.put(key, serialize(info, value, idOrNull));
+        }
+    }
+
+    /**
+     * Removes an entry from the off-heap tier before it is replaced in the heap tier.
+     */
+    private void dropOffHeap(Class<?> clazz, String idOrNull) {
+        OffHeapCache cold = offHeap;
+        if (cold == null || idOrNull == null) return;
+        synchronized (entryLock(cacheKey(clazz, idOrNull))) {
+            cold.remove(cacheKey(clazz, idOrNull));
+        }
+    }
+
+    /**
+     * Drops a pending write-back of an evicted entry that is about to be replaced,
+     * waiting for a write-back that is already running.
+     */
+    private void discardPendingEviction(Class<?> clazz, String idOrNull) {
+        String key = cacheKey(clazz, idOrNull);
+        if (!pendingEvictions.containsKey(key)) return;
+        synchronized (entryLock(key)) {
+            pendingEvictions.remove(key);
+            failedWriteBacks.remove(key);
+        }
+    }
+
+    private ExecutorService evictionWriter() {
+        ExecutorService writer = evictionWriter;
+        if (writer != null) return writer;
+        synchronized (this) {
+            if (evictionWriter == null) {
+                evictionWriter = Executors.newSingleThreadExecutor(runnable -> {
+                    Thread thread = new Thread(runnable, "Elements-DataHandler-Eviction");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            }
+            return evictionWriter;
+        }
+    }
+
+    private ExecutorService loadPool() {
+        ExecutorService pool = loadPool;
+        if (pool != null) return pool;
+        synchronized (this) {
+            if (loadPool == null) {
+                int threads = Math.max(2, Runtime.getRuntime().availableProcessors() / 2);
+                loadPool = Executors.newFixedThreadPool(threads, runnable -> {
+                    Thread thread = new Thread(runnable, "Elements-DataHandler-Loader");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            }
+            return loadPool;
+        }
+    }
+
+    private <T> T updateEntry(Class<T> clazz, String idOrNull, UnaryOperator<T> operator) {
+        ensureRegistered(clazz);
+        MetadataInfo info = registry.get(clazz);
+        if (info == null) {
+            throw new IllegalStateException("Class " + clazz.getName() + " is not annotated with @Metadata.");
+        }
+        if (!info.copyOnWrite) {
+            throw new IllegalStateException("Metadata " + clazz.getName() + " is not copyOnWrite; use set/save instead.");
+        }
+        if (!info.editable) {
+            throw new IllegalStateException("Metadata " + clazz.getName() + " is read-only (editable=false).");
+        }
+        ObjectMapper mapper = mapperFor(info.type);
+        return swapEntry(info, idOrNull, current -> operator.apply(mapper.convertValue(mapper.valueToTree(current), clazz)),
+                false);
+    }
+
+    /**
+     * set/save of a {@code copyOnWrite} storage: swaps in the given instance like an update
+     * whose result is fixed. Passing the current snapshot back means it was modified in place,
+     * which readers may have seen half-done, so that is rejected.
+     */
+    private <T> void replaceEntry(MetadataInfo info, String idOrNull, T instance, boolean writeNow) {
+        Objects.requireNonNull(instance, "instance");
+        Cached current = cachedEntry(info, idOrNull);
+        if (current != null && current.value == instance) {
+            throw new IllegalStateException("Instances of copyOnWrite storage " + info.clazz.getName()
+                    + " returned by get must not be modified; use update(...) instead.");
+        }
+        swapEntry(info, idOrNull, ignored -> instance, writeNow);
+    }
+
+    /**
+     * Swaps the result of {@code operator} in for the current instance unless another swap got there
+     * first, in which case it runs again.
+     */
+    @SuppressWarnings("unchecked")
+    private <T> T swapEntry(MetadataInfo info, String idOrNull, UnaryOperator<T> operator, boolean writeNow) {
+        Class<T> clazz = (Class<T>) info.clazz;
+        Path file = resolveFile(info, idOrNull);
+        while (true) {
+            T current = idOrNull == null ? get(clazz) : get(clazz, idOrNull);
+            T next = Objects.requireNonNull(operator.apply(current), "update operator returned null");
+            // logged before the swap so that a failing log rejects the change; if the swap loses,
+            // the retry logs again and its record is the later one
+            logMutation(info, idOrNull, next);
+            long lm = getLastModified(file);
+            Cached swapped = idOrNull == null
+                    ? instances.computeIfPresent(clazz, (k, c) -> c.value == current ? c.changed(next, lm) : c)
+                    : patternCache(clazz).computeIfPresent(idOrNull, (k, c) -> c.value == current ? c.changed(next, lm) : c);
+            if (swapped == null || swapped.value != next) continue;
+
+            discardPendingEviction(clazz, idOrNull);
+            dropOffHeap(clazz, idOrNull);
+            onRollback(() -> {
+                if (idOrNull == null) instances.remove(clazz);
+                else clearCache(clazz, idOrNull);
+            });
+            if ((writeNow || writeBehind != null || inTransaction()) && !info.config) {
+                write(info, idOrNull, next);
+            }
+            return next;
+        }
+    }
+
+    private Cached cachedEntry(MetadataInfo info, String idOrNull) {
+        if (idOrNull == null) {
+            return instances.peek(info.clazz);
+        }
+        MetadataCache<String, Cached> perId = patternInstances.get(info.clazz);
+        return perId == null ? null : perId.peek(idOrNull);
+    }
+
+    /**
+     * Caches a changed pattern entry. With a byte limit, an entry whose size is not known yet
+     * (set before it was ever loaded or written) is weighed by serializing it once, or unsaved
+     * entries, which pile up between autosaves, would each count as a single byte.
+     */
+    private void putChanged(MetadataInfo info, String id, Object instance, long lm) {
+        MetadataCache<String, Cached> cache = patternCache(info.clazz);
+        Cached previous = cache.peek(id);
+        Cached changed = previous != null ? previous.changed(instance, lm) : new Cached(instance, lm, 0L, 0, true);
+        if (changed.weight == 0 && maxPatternCacheBytes > 0) {
+            changed = changed.weighing(serialize(info, instance, id).length);
+        }
+        cache.put(id, changed);
+    }
+
+    private void markWritten(MetadataInfo info, String idOrNull, Object obj, Path file, long hash, int size,
+                             JournalState journal) {
+        long lm = getLastModified(file);
+        if (idOrNull == null) {
+            instances.computeIfPresent(info.clazz, (k, c) -> c.written(obj, lm, hash, size, journal));
+            return;
+        }
+        MetadataCache<String, Cached> perId = patternInstances.get(info.clazz);
+        if (perId != null) {
+            perId.computeIfPresent(idOrNull, (k, c) -> c.written(obj, lm, hash, size, journal));
+        }
+    }
+
+    /**
+     * Loads an incremental storage: parses the data file and replays its journal.
+     * Fields that are missing in the file are journaled right away if autoMigrate is set.
+     * A document upgraded to a newer schema version is folded into a new data file instead,
+     * because the journal only applies to the old one.
+     */
+    private Cached loadIncremental(MetadataInfo info, String idOrNull, Path filePath, byte[] raw, JsonNode base,
+                                   boolean saveMigrated) throws IOException {
+        ObjectMapper mapper = mapperFor(info.type);
+        long hash = contentHash(raw);
+        Path journalFile = journalFile(filePath);
+        JournalState state = replayJournal(journalFile, base, hash);
+        boolean upgraded = info.version > 0 && SchemaVersions.of(state.tree()) != info.version;
+        // journals diff the object's own properties, without the version
+        state = new JournalState(upgrade(info, state.tree()), state.journalSize());
+
+        Object loaded = info.reader.readValue(state.tree());
+        validateMetadataObject(info, loaded);
+        if (upgraded) {
+            if (!info.editable || !saveMigrated) {
+                // no journal state: the next save rewrites the data file
+                return new Cached(loaded, getLastModified(filePath), hash, raw.length, false, null);
+            }
+            byte[] bytes = serialize(info, loaded, idOrNull);
+            writeBytes(info, bytes, idOrNull, filePath, () -> deleteJournal(filePath));
+            return new Cached(loaded, getLastModified(filePath), contentHash(bytes), bytes.length, false,
+                    new JournalState(mapper.valueToTree(loaded), 0L));
+        }
+        if (info.autoMigrate && info.editable && info.version == 0) {
+            JsonNode migrated = mapper.valueToTree(loaded);
+            ArrayNode patch = JsonPatch.diff(state.tree(), migrated);
+            if (!patch.isEmpty()) {
+                boolean fresh = state.journalSize() == 0;
+                byte[] entry = journalEntry(hash, fresh, patch);
+                writeJournal(info, idOrNull, journalFile, entry, fresh, null);
+                state = new JournalState(migrated, state.journalSize() + entry.length);
+            }
+        }
+        return new Cached(loaded, getLastModified(filePath), hash, raw.length, false, state);
+    }
+
+    /**
+     * Applies the journal to the parsed data file. A journal whose header names another data
+     * file is stale (it was already folded in) and ignored; an incomplete last entry, left by
+     * a crash during append, is truncated.
+     */
+    private static JournalState replayJournal(Path journalFile, JsonNode tree, long baseHash) throws IOException {
+        byte[] journal;
+        try {
+            journal = Files.readAllBytes(journalFile);
+        } catch (NoSuchFileException e) {
+            return new JournalState(tree, 0L);
+        }
+        int end = indexOf(journal, (byte) '\n', 0);
+        String base = "";
+        try {
+            if (end >= 0) base = JSON_MAPPER.readTree(journal, 0, end).path("base").asText();
+        } catch (IOException ignored) {}
+        if (!base.equals(Long.toHexString(baseHash))) {
+            return new JournalState(tree, 0L);
+        }
+
+        int start = end + 1;
+        while (start < journal.length) {
+            end = indexOf(journal, (byte) '\n', start);
+            JsonNode patch = null;
+            if (end >= 0) {
+                try {
+                    patch = JSON_MAPPER.readTree(journal, start, end - start);
+                } catch (IOException ignored) {}
+            }
+            if (patch == null) {
+                LOGGER.log(Level.WARNING, "Truncating incomplete journal entry of " + journalFile);
+                try (FileChannel channel = FileChannel.open(journalFile, StandardOpenOption.WRITE)) {
+                    channel.truncate(start);
+                }
+                break;
+            }
+            tree = JsonPatch.apply(tree, patch);
+            start = end + 1;
+        }
+        return new JournalState(tree, start);
+    }
+
+    /**
+     * Saves an incremental storage by appending the difference to the last persisted state
+     * to its journal. The data file is rewritten instead if nothing is known about the
+     * persisted state yet, the journal would grow beyond half the data file, or
+     * {@code foldJournal} is set.
+     */
+    private void writeIncremental(MetadataInfo info, String idOrNull, Object obj, Path file, boolean foldJournal) {
+        Lock gate = writeGate.readLock();
+        gate.lock();
+        try {
+            synchronized (entryLock(cacheKey(info.clazz, idOrNull))) {
+                Cached current = cachedEntry(info, idOrNull);
+                JournalState state = current == null ? null : current.journal;
+                JsonNode tree = mapperFor(info.type).valueToTree(obj);
+                if (state != null) {
+                    ArrayNode patch = JsonPatch.diff(state.tree(), tree);
+                    if (patch.isEmpty() && (!foldJournal || state.journalSize() == 0)) {
+                        skippedWrites.increment();
+                        markWritten(info, idOrNull, obj, file, current.contentHash, current.size, state);
+                        return;
+                    }
+                    boolean fresh = state.journalSize() == 0;
+                    byte[] entry = foldJournal ? null : journalEntry(current.contentHash, fresh, patch);
+                    if (entry != null && state.journalSize() + entry.length
+                            <= Math.max(MIN_JOURNAL_COMPACTION_SIZE, current.size / 2)) {
+                        JournalState next = new JournalState(tree, state.journalSize() + entry.length);
+                        long hash = current.contentHash;
+                        int size = current.size;
+                        writeJournal(info, idOrNull, journalFile(file), entry, fresh,
+                                () -> markWritten(info, idOrNull, obj, file, hash, size, next));
+                        return;
+                    }
+                }
+
+                // fold: rewrite the data file and drop the journal
+                byte[] bytes = serialize(info, obj, idOrNull);
+                long hash = contentHash(bytes);
+                JournalState next = new JournalState(tree, 0L);
+                writeBytes(info, bytes, idOrNull, file, () -> {
+                    deleteJournal(file);
+                    markWritten(info, idOrNull, obj, file, hash, bytes.length, next);
+                });
+            }
+        } finally {
+            gate.unlock();
+        }
+    }
+
+    /**
+     * Writes a journal entry. A fresh journal replaces any stale file, otherwise the entry is appended.
+     */
+    private void writeJournal(MetadataInfo info, String idOrNull, Path journalFile, byte[] entry, boolean fresh,
+                              Runnable afterCommit) {
+        if (!info.editable) return;
+        Lock gate = writeGate.readLock();
+        gate.lock();
+        try {
+            changed(journalFile);
+            FileWriteBatch batch = currentBatch.get();
+            boolean own = batch == null;
+            if (own) batch = new FileWriteBatch(atomicWrites, false);
+            if (fresh) {
+                batch.write(journalFile, entry, afterCommit);
+            } else {
+                batch.append(journalFile, entry, afterCommit);
+            }
+            if (own) batch.commit();
+            writtenFiles.increment();
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to write journal for " + info.clazz.getName() + " (id=" + idOrNull + ")", e);
+        } finally {
+            gate.unlock();
+        }
+    }
+
+    /**
+     * Journal format: one JSON document per line. The first line names the hash of the data
+     * file the journal applies to, every further line is a JSON Patch.
+     */
+    private static byte[] journalEntry(long baseHash, boolean withHeader, ArrayNode patch) {
+        try {
+            String line = JSON_MAPPER.writeValueAsString(patch) + "\n";
+            if (withHeader) {
+                line = "{\"base\":\"" + Long.toHexString(baseHash) + "\"}\n" + line;
+            }
+            return line.getBytes(StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to serialize journal entry", e);
+        }
+    }
+
+    private static Path journalFile(Path file) {
+        return file.resolveSibling(file.getFileName() + ".journal");
+    }
+
+    private static void deleteJournal(Path file) {
+        try {
+            Files.deleteIfExists(journalFile(file));
+        } catch (IOException e) {
+            // harmless: a journal of an older data file is ignored on load
+            LOGGER.log(Level.FINE, "Failed to delete journal of " + file, e);
+        }
+    }
+
+    private static int indexOf(byte[] bytes, byte value, int from) {
+        for (int i = from; i < bytes.length; i++) {
+            if (bytes[i] == value) return i;
+        }
+        return -1;
+    }
+
+    private byte[] serialize(MetadataInfo info, Object obj, String idOrNull) {
+        try {
+            if (info.version > 0) return SchemaVersions.write(info.writer, obj, info.version);
+            return info.writer.writeValueAsBytes(obj);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to serialize " + info.type + " for " + info.clazz.getName() + " (id=" + idOrNull + ")", e);
+        }
+    }
+
+    /**
+     * Parses a large read-only file while streaming it instead of reading all of it onto
+     * the heap first. Read-only files are never written back, so no content hash is needed.
+     * A memory-mapped buffer would save no time at these sizes and keeps the file locked on
+     * Windows until it is garbage collected, which blocks replacing it.
+     *
+     * @return the loaded entry, or null if the file is missing or small enough to read normally
+     */
+    private Cached loadStreamed(MetadataInfo info, Path filePath) throws IOException {
+        long size;
+        try {
+            size = Files.size(filePath);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        if (size < STREAM_READ_THRESHOLD || size > Integer.MAX_VALUE) return null;
+
+        Object loaded;
+        try (InputStream in = Files.newInputStream(filePath)) {
+            loaded = info.reader.readValue(in);
+        }
+        validateMetadataObject(info, loaded);
+        return new Cached(loaded, getLastModified(filePath), 0L, (int) size, false);
+    }
+
+    /**
+     * @return the stored bytes, or null if nothing has been stored yet
+     */
+    private byte[] readStored(MetadataInfo info, String idOrNull, Path filePath) throws IOException {
+        byte[] raw;
+        if (usesStore(info)) {
+            raw = store.read(namespace(info), idOrNull == null ? "" : idOrNull);
+        } else if (info.storage == MetadataStorage.LOG) {
+            raw = logFor(info).read(idOrNull);
+        } else if (Files.exists(filePath)) {
+            raw = Files.readAllBytes(filePath);
+        } else {
+            return null;
+        }
+        return raw == null ? null : info.compression.decompress(raw);
+    }
+
+    /**
+     * Configs always stay files, so they can be edited by hand and watched.
+     */
+    private boolean usesStore(MetadataInfo info) {
+        return store != null && !info.config;
+    }
+
+    /**
+     * Incremental storages only keep a journal when they are stored as files.
+     */
+    private boolean journaled(MetadataInfo info) {
+        return info.incremental && !usesStore(info);
+    }
+
+    private static String namespace(MetadataInfo info) {
+        return info.path == null || info.path.isEmpty() ? info.nameTemplate : info.path + "/" + info.nameTemplate;
+    }
+
+    private SegmentLog logFor(MetadataInfo info) {
+        return logs.computeIfAbsent(info.clazz, k -> {
+            Path dir = info.path == null || info.path.isEmpty() ? baseDir : baseDir.resolve(info.path);
+            Path file = dir.resolve(info.clazz.getSimpleName() + ".log");
+            try {
+                return new SegmentLog(file);
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to open log " + file + " for " + info.clazz.getName(), e);
+            }
+        });
+    }
+
+    private void writeBytes(MetadataInfo info, byte[] bytes, String idOrNull, Path filePath, Runnable afterCommit) {
         if(!info.editable) return;
+        Lock gate = writeGate.readLock();
+        gate.lock();
         try {
-            Files.createDirectories(filePath.getParent());
-            mapperFor(info.type).writerWithDefaultPrettyPrinter().writeValue(filePath.toFile(), obj);
+            bytes = info.compression.compress(bytes);
+            FileWriteBatch batch = currentBatch.get();
+            if (usesStore(info)) {
+                storeChanged(false);
+                boolean own = batch == null;
+                if (own) batch = new FileWriteBatch(atomicWrites, false);
+                batch.put(store, namespace(info), idOrNull == null ? "" : idOrNull, bytes, afterCommit);
+                if (own) batch.commit();
+            } else if (info.storage == MetadataStorage.LOG) {
+                appended(logFor(info).file());
+                if (batch != null) {
+                    batch.append(logFor(info), idOrNull, bytes, afterCommit);
+                } else {
+                    new FileWriteBatch(atomicWrites, false).append(logFor(info), idOrNull, bytes, afterCommit);
+                }
+            } else {
+                changed(filePath);
+                if (info.incremental) changed(journalFile(filePath)); // dropped after a full rewrite
+                if (batch != null) {
+                    batch.write(filePath, bytes, afterCommit);
+                } else {
+                    batch = new FileWriteBatch(atomicWrites, false);
+                    batch.write(filePath, bytes, afterCommit);
+                    batch.commit();
+                }
+            }
+            writtenFiles.increment();
         } catch (IOException e) {
             throw new RuntimeException("Failed to save " + info.type + " for " + info.clazz.getName() + " (id=" + idOrNull + ")", e);
+        } finally {
+            gate.unlock();
+        }
+    }
+
+    /**
+     * 64-bit FNV-1a hash used to detect unchanged content without keeping the bytes around.
+     */
+    private static long contentHash(byte[] bytes) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : bytes) {
+            hash ^= (b & 0xff);
+            hash *= 0x100000001b3L;
         }
+        return hash;
     }
 
     private Object newDefault(Class<?> cls) {
@@ -505,11 +2759,12 @@ public final class DataHandler {
             }
             validateId(idOrNull);
             fileName = info.nameTemplate.replace("{id}", idOrNull);
+            if (info.sharded) fileName = shardOf(idOrNull) + fileName;
         } else {
             fileName = info.nameTemplate;
         }
 
-        String ext = info.type == MetadataType.YAML ? ".yml" : ".json";
+        String ext = info.extension();
 
         Path resolved;
         if (info.path == null || info.path.isEmpty()) {
@@ -526,6 +2781,40 @@ public final class DataHandler {
         return resolved;
     }
 
+    /**
+     * Extracts the id from a file name of the given storage and format.
+     *
+     * @return the id ("" for singleton storages), or null if the name doesn't belong to the storage
+     */
+    private String idFromFileName(MetadataInfo info, String fileName, String extension) {
+        if (!fileName.endsWith(extension)) return null;
+        String base = fileName.substring(0, fileName.length() - extension.length());
+        if (!info.pattern) {
+            return base.equals(info.nameTemplate) ? "" : null;
+        }
+        int marker = info.nameTemplate.indexOf("{id}");
+        String prefix = info.nameTemplate.substring(0, marker);
+        String suffix = info.nameTemplate.substring(marker + "{id}".length());
+        if (base.length() <= prefix.length() + suffix.length()
+                || !base.startsWith(prefix) || !base.endsWith(suffix)) {
+            return null;
+        }
+        return base.substring(prefix.length(), base.length() - suffix.length());
+    }
+
+    /**
+     * @return the shard directories of an id, e.g. {@code "3f/a1/"}, spread evenly by its hash
+     */
+    private static String shardOf(String id) {
+        int h = id.hashCode() * 0x9E3779B9;
+        h ^= h >>> 15;
+        return hex(h >>> 24) + '/' + hex((h >>> 16) & 0xFF) + '/';
+    }
+
+    private static String hex(int b) {
+        return Integer.toHexString(b | 0x100).substring(1);
+    }
+
     private void validateId(String id) {
         if (id == null || id.isEmpty()) {
             throw new IllegalArgumentException("ID cannot be null or empty");
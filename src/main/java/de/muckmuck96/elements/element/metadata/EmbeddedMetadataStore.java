@@ -0,0 +1,79 @@
+package de.muckmuck96.elements.element.metadata;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Embedded {@link MetadataStore} keeping every value in one local file.
+ * <p>
+ * Built on the same append-only {@link SegmentLog} as {@link MetadataStorage#LOG}: each
+ * {@link #apply} appends one batch, so changes to several classes commit together and a
+ * crash never leaves half of a batch behind. An index of all keys is kept in memory;
+ * values are read from disk on demand.
+ * </p>
+ */
+public final class EmbeddedMetadataStore implements MetadataStore {
+    private static final char SEPARATOR = '\0';
+
+    private final SegmentLog log;
+
+    /**
+     * @param file the store file, created if it does not exist
+     */
+    public EmbeddedMetadataStore(Path file) throws IOException {
+        this.log = new SegmentLog(file);
+    }
+
+    @Override
+    public byte[] read(String namespace, String key) throws IOException {
+        return log.read(namespace + SEPARATOR + key);
+    }
+
+    @Override
+    public Set<String> keys(String namespace) {
+        String prefix = namespace + SEPARATOR;
+        return log.keys().stream()
+                .filter(key -> key.startsWith(prefix))
+                .map(key -> key.substring(prefix.length()))
+                .collect(Collectors.toSet());
+    }
+
+    @Override
+    public void apply(Map<String, Map<String, byte[]>> changes) throws IOException {
+        Map<String, byte[]> batch = new LinkedHashMap<>();
+        for (Map.Entry<String, Map<String, byte[]>> namespace : changes.entrySet()) {
+            for (Map.Entry<String, byte[]> entry : namespace.getValue().entrySet()) {
+                batch.put(namespace.getKey() + SEPARATOR + entry.getKey(), entry.getValue());
+            }
+        }
+        log.writeBatch(batch);
+    }
+
+    @Override
+    public void sync() throws IOException {
+        log.sync();
+    }
+
+    @Override
+    public void compact() throws IOException {
+        if (log.needsCompaction()) {
+            log.compact();
+        }
+    }
+
+    /**
+     * @return the store file
+     */
+    Path file() {
+        return log.file();
+    }
+
+    @Override
+    public void close() throws IOException {
+        log.close();
+    }
+}
@@ -0,0 +1,246 @@
+package de.muckmuck96.elements.element.metadata;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Writes files for {@link DataHandler}, optionally crash-safe.
+ * <p>
+ * In atomic mode every file is written to a temporary file in the same directory,
+ * fsync'd and renamed over the target, so a crash leaves either the old or the new
+ * content but never a torn file. With batched fsync the temporary files of a whole
+ * batch are written first and synced back-to-back on {@link #commit()}, followed by
+ * the renames and a single fsync per directory. Appends to a {@link SegmentLog} or a
+ * plain file are synced once per file and batch. Values for a {@link MetadataStore} are
+ * always collected and applied as one atomic change on {@link #commit()}.
+ * </p>
+ */
+final class FileWriteBatch {
+    private final boolean atomic;
+    private final boolean batched;
+    private final List<PendingFile> pending = new ArrayList<>();
+    private final Set<SegmentLog> logsToSync = new LinkedHashSet<>();
+    private final Set<Path> filesToSync = new LinkedHashSet<>();
+    private final List<Runnable> appendCallbacks = new ArrayList<>();
+    private final Map<String, Map<String, byte[]>> storeChanges = new LinkedHashMap<>();
+    private final List<Runnable> storeCallbacks = new ArrayList<>();
+    private MetadataStore store;
+
+    private record PendingFile(Path temp, Path target, Runnable afterCommit) {}
+
+    FileWriteBatch(boolean atomic, boolean batched) {
+        this.atomic = atomic;
+        this.batched = atomic && batched;
+    }
+
+    /**
+     * Writes the bytes to the target. {@code afterCommit} runs once the content is durable
+     * at the target path; for batched writes this happens during {@link #commit()}.
+     */
+    void write(Path target, byte[] bytes, Runnable afterCommit) throws IOException {
+        Files.createDirectories(target.getParent());
+        if (!atomic) {
+            Files.write(target, bytes);
+            if (afterCommit != null) afterCommit.run();
+            return;
+        }
+
+        Path temp = target.resolveSibling("." + target.getFileName() + "."
+                + Long.toHexString(ThreadLocalRandom.current().nextLong()) + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            if (!batched) {
+                channel.force(true);
+            }
+        } catch (IOException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+
+        if (batched) {
+            pending.add(new PendingFile(temp, target, afterCommit));
+            return;
+        }
+        moveIntoPlace(temp, target);
+        syncDirectory(target.getParent());
+        if (afterCommit != null) afterCommit.run();
+    }
+
+    /**
+     * Appends the bytes to a log. In atomic mode the log is synced before
+     * {@code afterCommit} runs; for batched writes once per log during {@link #commit()}.
+     */
+    void append(SegmentLog log, String key, byte[] bytes, Runnable afterCommit) throws IOException {
+        log.write(key, bytes);
+        if (batched) {
+            logsToSync.add(log);
+            if (afterCommit != null) appendCallbacks.add(afterCommit);
+            return;
+        }
+        if (atomic) log.sync();
+        if (afterCommit != null) afterCommit.run();
+    }
+
+    /**
+     * Appends the bytes to the end of a file, creating it if necessary. In atomic mode the
+     * file is synced before {@code afterCommit} runs; for batched writes during {@link #commit()}.
+     */
+    void append(Path target, byte[] bytes, Runnable afterCommit) throws IOException {
+        Files.createDirectories(target.getParent());
+        try (FileChannel channel = FileChannel.open(target, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            if (atomic && !batched) {
+                channel.force(false);
+            }
+        }
+        if (batched) {
+            filesToSync.add(target);
+            if (afterCommit != null) appendCallbacks.add(afterCommit);
+            return;
+        }
+        if (afterCommit != null) afterCommit.run();
+    }
+
+    /**
+     * Stages a value for the store; it is written on {@link #commit()}.
+     */
+    void put(MetadataStore store, String namespace, String key, byte[] bytes, Runnable afterCommit) {
+        if (this.store != null && this.store != store) {
+            throw new IllegalStateException("A write batch can only span one store");
+        }
+        this.store = store;
+        storeChanges.computeIfAbsent(namespace, k -> new LinkedHashMap<>()).put(key, bytes);
+        if (afterCommit != null) storeCallbacks.add(afterCommit);
+    }
+
+    /**
+     * Discards everything that has not been committed yet: staged store values and, for
+     * batched writes, files that have not been renamed into place. Appends and unbatched
+     * file writes are already on disk and stay.
+     */
+    void abort() {
+        for (PendingFile file : pending) {
+            try {
+                Files.deleteIfExists(file.temp());
+            } catch (IOException ignored) {}
+        }
+        pending.clear();
+        storeChanges.clear();
+        storeCallbacks.clear();
+        logsToSync.clear();
+        filesToSync.clear();
+        appendCallbacks.clear();
+    }
+
+    /**
+     * Syncs and renames all files written since the last commit. Files that fail are
+     * skipped; the first failure is rethrown after all other files were processed.
+     */
+    void commit() throws IOException {
+        IOException failure = null;
+        if (!storeChanges.isEmpty()) {
+            try {
+                store.apply(storeChanges);
+                if (atomic) store.sync();
+                storeCallbacks.forEach(Runnable::run);
+            } catch (IOException e) {
+                failure = e;
+            }
+            storeChanges.clear();
+            storeCallbacks.clear();
+        }
+        for (SegmentLog log : logsToSync) {
+            try {
+                log.sync();
+            } catch (IOException e) {
+                failure = addFailure(failure, e);
+            }
+        }
+        for (Path file : filesToSync) {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                channel.force(false);
+            } catch (IOException e) {
+                failure = addFailure(failure, e);
+            }
+        }
+        if (failure == null) appendCallbacks.forEach(Runnable::run);
+        logsToSync.clear();
+        filesToSync.clear();
+        appendCallbacks.clear();
+        if (pending.isEmpty()) {
+            if (failure != null) throw failure;
+            return;
+        }
+
+        List<PendingFile> synced = new ArrayList<>(pending.size());
+        for (PendingFile file : pending) {
+            try (FileChannel channel = FileChannel.open(file.temp(), StandardOpenOption.WRITE)) {
+                channel.force(true);
+                synced.add(file);
+            } catch (IOException e) {
+                Files.deleteIfExists(file.temp());
+                failure = addFailure(failure, e);
+            }
+        }
+        pending.clear();
+
+        Set<Path> directories = new LinkedHashSet<>();
+        List<Runnable> callbacks = new ArrayList<>(synced.size());
+        for (PendingFile file : synced) {
+            try {
+                moveIntoPlace(file.temp(), file.target());
+                directories.add(file.target().getParent());
+                if (file.afterCommit() != null) callbacks.add(file.afterCommit());
+            } catch (IOException e) {
+                Files.deleteIfExists(file.temp());
+                failure = addFailure(failure, e);
+            }
+        }
+        for (Path directory : directories) {
+            syncDirectory(directory);
+        }
+        callbacks.forEach(Runnable::run);
+        if (failure != null) throw failure;
+    }
+
+    private static IOException addFailure(IOException failure, IOException e) {
+        if (failure == null) return e;
+        failure.addSuppressed(e);
+        return failure;
+    }
+
+    private static void moveIntoPlace(Path temp, Path target) throws IOException {
+        try {
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static void syncDirectory(Path directory) {
+        // Persists the rename itself; not supported on every platform (e.g. Windows)
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException ignored) {}
+    }
+}
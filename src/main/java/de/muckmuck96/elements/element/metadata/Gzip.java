@@ -0,0 +1,129 @@
+package de.muckmuck96.elements.element.metadata;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * In-memory gzip for {@link MetadataCompression#GZIP}.
+ * <p>
+ * {@code GZIPOutputStream} and {@code GZIPInputStream} allocate a new native deflater or
+ * inflater per stream. Here the gzip header and trailer are written by hand around raw
+ * deflate data, so the native contexts can be pooled and reused across saves.
+ * </p>
+ */
+final class Gzip {
+    private static final int MAX_POOLED = 16;
+    private static final int MAX_PRESIZE = 64 * 1024 * 1024;
+    private static final byte[] HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+    private static final int FHCRC = 2;
+    private static final int FEXTRA = 4;
+    private static final int FNAME = 8;
+    private static final int FCOMMENT = 16;
+
+    private static final BlockingQueue<Deflater> DEFLATERS = new ArrayBlockingQueue<>(MAX_POOLED);
+    private static final BlockingQueue<Inflater> INFLATERS = new ArrayBlockingQueue<>(MAX_POOLED);
+
+    private Gzip() {}
+
+    static byte[] compress(byte[] data) {
+        Deflater deflater = DEFLATERS.poll();
+        if (deflater == null) deflater = new Deflater(Deflater.BEST_SPEED, true);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, data.length / 4));
+            out.write(HEADER, 0, HEADER.length);
+            byte[] buffer = new byte[8192];
+            while (!deflater.finished()) {
+                int n = deflater.deflate(buffer);
+                out.write(buffer, 0, n);
+            }
+            CRC32 crc = new CRC32();
+            crc.update(data);
+            writeIntLE(out, (int) crc.getValue());
+            writeIntLE(out, data.length);
+            return out.toByteArray();
+        } finally {
+            deflater.reset();
+            if (!DEFLATERS.offer(deflater)) deflater.end();
+        }
+    }
+
+    /**
+     * @throws ZipException if the data is not a valid single-member gzip stream
+     */
+    static byte[] decompress(byte[] data) throws IOException {
+        if (data.length < HEADER.length + 8 || (data[0] & 0xff) != 0x1f || (data[1] & 0xff) != 0x8b
+                || data[2] != Deflater.DEFLATED) {
+            throw new ZipException("Not in GZIP format");
+        }
+        int flags = data[3] & 0xff;
+        int pos = HEADER.length;
+        int end = data.length - 8;
+        if ((flags & FEXTRA) != 0) {
+            if (pos + 2 > end) throw new ZipException("Corrupt GZIP header");
+            pos += 2 + ((data[pos] & 0xff) | (data[pos + 1] & 0xff) << 8);
+        }
+        if ((flags & FNAME) != 0) pos = skipZeroTerminated(data, pos, end);
+        if ((flags & FCOMMENT) != 0) pos = skipZeroTerminated(data, pos, end);
+        if ((flags & FHCRC) != 0) pos += 2;
+        if (pos > end) throw new ZipException("Corrupt GZIP header");
+
+        int expectedCrc = readIntLE(data, end);
+        int expectedSize = readIntLE(data, end + 4);
+        Inflater inflater = INFLATERS.poll();
+        if (inflater == null) inflater = new Inflater(true);
+        try {
+            inflater.setInput(data, pos, end - pos);
+            byte[] out = new byte[expectedSize >= 0 && expectedSize <= MAX_PRESIZE ? expectedSize : 8192];
+            int n = 0;
+            while (!inflater.finished()) {
+                if (n == out.length) out = Arrays.copyOf(out, Math.max(8192, out.length * 2));
+                int read = inflater.inflate(out, n, out.length - n);
+                if (read == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new ZipException("Truncated GZIP data");
+                }
+                n += read;
+            }
+            CRC32 crc = new CRC32();
+            crc.update(out, 0, n);
+            if ((int) crc.getValue() != expectedCrc || n != expectedSize) {
+                throw new ZipException("Corrupt GZIP data (CRC or size mismatch)");
+            }
+            return n == out.length ? out : Arrays.copyOf(out, n);
+        } catch (DataFormatException e) {
+            throw new ZipException("Corrupt GZIP data: " + e.getMessage());
+        } finally {
+            inflater.reset();
+            if (!INFLATERS.offer(inflater)) inflater.end();
+        }
+    }
+
+    /**
+     * @param end the start of the trailer, which header fields must not reach into
+     */
+    private static int skipZeroTerminated(byte[] data, int pos, int end) throws ZipException {
+        while (pos < end && data[pos] != 0) pos++;
+        if (pos >= end) throw new ZipException("Corrupt GZIP header");
+        return pos + 1;
+    }
+
+    private static void writeIntLE(ByteArrayOutputStream out, int value) {
+        out.write(value);
+        out.write(value >>> 8);
+        out.write(value >>> 16);
+        out.write(value >>> 24);
+    }
+
+    private static int readIntLE(byte[] data, int pos) {
+        return (data[pos] & 0xff) | (data[pos + 1] & 0xff) << 8 | (data[pos + 2] & 0xff) << 16 | (data[pos + 3] & 0xff) << 24;
+    }
+}
@@ -0,0 +1,20 @@
+package de.muckmuck96.elements.element.metadata;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a field of a pattern storage for a secondary index, so ids can be looked up by
+ * the field's value with {@link DataHandler#query} and {@link DataHandler#top} without
+ * loading every instance.
+ * <p>
+ * Supported field types: numbers, strings, booleans, chars, enums and UUIDs.
+ * Null values are not indexed.
+ * </p>
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.FIELD)
+public @interface Indexed {
+}
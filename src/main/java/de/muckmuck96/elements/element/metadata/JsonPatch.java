@@ -0,0 +1,114 @@
+package de.muckmuck96.elements.element.metadata;
+
+import com.fasterxml.jackson.core.JsonPointer;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Minimal JSON Patch (RFC 6902) support for incremental saves.
+ * <p>
+ * {@link #diff} produces {@code add}, {@code remove} and {@code replace} operations:
+ * objects are compared field by field, arrays of equal length element by element,
+ * and everything else is replaced as a whole.
+ * </p>
+ */
+final class JsonPatch {
+    private JsonPatch() {}
+
+    /**
+     * @return the operations that turn {@code source} into {@code target}, empty if equal
+     */
+    static ArrayNode diff(JsonNode source, JsonNode target) {
+        ArrayNode ops = JsonNodeFactory.instance.arrayNode();
+        diff(ops, JsonPointer.empty(), source, target);
+        return ops;
+    }
+
+    private static void diff(ArrayNode ops, JsonPointer path, JsonNode source, JsonNode target) {
+        if (source.equals(target)) return;
+        if (source.isObject() && target.isObject()) {
+            Iterator<String> names = source.fieldNames();
+            while (names.hasNext()) {
+                String name = names.next();
+                if (!target.has(name)) {
+                    op(ops, "remove", path.appendProperty(name));
+                }
+            }
+            Iterator<Map.Entry<String, JsonNode>> fields = target.fields();
+            while (fields.hasNext()) {
+                Map.Entry<String, JsonNode> field = fields.next();
+                JsonNode previous = source.get(field.getKey());
+                if (previous == null) {
+                    op(ops, "add", path.appendProperty(field.getKey())).set("value", field.getValue());
+                } else {
+                    diff(ops, path.appendProperty(field.getKey()), previous, field.getValue());
+                }
+            }
+            return;
+        }
+        if (source.isArray() && target.isArray() && source.size() == target.size()) {
+            for (int i = 0; i < source.size(); i++) {
+                diff(ops, path.appendIndex(i), source.get(i), target.get(i));
+            }
+            return;
+        }
+        op(ops, "replace", path).set("value", target);
+    }
+
+    private static ObjectNode op(ArrayNode ops, String name, JsonPointer path) {
+        return ops.addObject().put("op", name).put("path", path.toString());
+    }
+
+    /**
+     * Applies the operations to {@code root}, modifying it in place.
+     *
+     * @return the patched document, which is a new node if the root itself was replaced
+     * @throws IOException if an operation does not fit the document
+     */
+    static JsonNode apply(JsonNode root, JsonNode patch) throws IOException {
+        for (JsonNode op : patch) {
+            String name = op.path("op").asText();
+            JsonPointer path = JsonPointer.compile(op.path("path").asText());
+            JsonNode value = op.get("value");
+            if (path.matches()) {
+                if (value == null) throw new IOException("Cannot " + name + " the document root");
+                root = value;
+                continue;
+            }
+
+            JsonNode parent = root.at(path.head());
+            JsonPointer last = path.last();
+            if (parent instanceof ObjectNode object) {
+                String property = last.getMatchingProperty();
+                switch (name) {
+                    case "remove" -> object.remove(property);
+                    case "add", "replace" -> object.set(property, value);
+                    default -> throw new IOException("Unsupported patch operation: " + name);
+                }
+            } else if (parent instanceof ArrayNode array) {
+                int index = last.getMatchingIndex();
+                if ("add".equals(name) && (index < 0 || index == array.size())) {
+                    array.add(value);
+                } else if (index < 0 || index >= array.size()) {
+                    throw new IOException("Patch index out of bounds: " + path);
+                } else {
+                    switch (name) {
+                        case "remove" -> array.remove(index);
+                        case "add" -> array.insert(index, value);
+                        case "replace" -> array.set(index, value);
+                        default -> throw new IOException("Unsupported patch operation: " + name);
+                    }
+                }
+            } else {
+                throw new IOException("Patch path does not exist: " + path);
+            }
+        }
+        return root;
+    }
+}
@@ -47,4 +47,60 @@ public @interface Metadata {
      * If false, it's a normal cached storage (no auto reload).
      */
     boolean config() default false;
+
+    /**
+     * Storage backend for pattern storages. {@link MetadataStorage#LOG} keeps all ids
+     * of this class in one append-only log instead of one file per id.
+     * Only valid for pattern storages that are not configs.
+     */
+    MetadataStorage storage() default MetadataStorage.FILES;
+
+    /**
+     * If true, saves only append the changed fields as a JSON Patch to a journal file
+     * next to the data file ({@code <file>.journal}) instead of rewriting the whole file.
+     * The journal is replayed on load and folded back into the data file once it grows
+     * to half the file's size, or by {@link DataHandler#compactJournals()}.
+     * Useful for large objects of which only a few fields change between saves.
+     * Only valid with {@link MetadataStorage#FILES}.
+     */
+    boolean incremental() default false;
+
+    /**
+     * If true, instances are treated as immutable snapshots: {@code get(...)} hands out the
+     * current snapshot, which must not be modified, and changes go through
+     * {@link DataHandler#update(Class, String, java.util.function.UnaryOperator)}, which
+     * modifies a copy and swaps it in atomically. Readers on any thread never lock and
+     * never see a half-applied change.
+     */
+    boolean copyOnWrite() default false;
+
+    /**
+     * If false, files are written compactly instead of pretty-printed, which makes them
+     * smaller and faster to write. Configs are always pretty-printed.
+     */
+    boolean pretty() default true;
+
+    /**
+     * If true, files of a pattern storage are spread over nested subdirectories by a hash
+     * of the id ({@code path/ab/cd/<name>}) instead of all living in one directory, which
+     * keeps directories small with hundreds of thousands of ids. Existing files are moved
+     * into the new layout in the background, and on first access before that.
+     * Requires a pattern name ({@code {id}}), {@link MetadataStorage#FILES} and config=false.
+     */
+    boolean sharded() default false;
+
+    /**
+     * Compression of the stored data. Compressed files get an extra extension
+     * (e.g. {@code .json.gz}). Not valid for configs or {@code incremental} storages.
+     */
+    MetadataCompression compression() default MetadataCompression.NONE;
+
+    /**
+     * Schema version of the class. If greater than 0, it is stored in every document
+     * ({@code "_version"}) and older documents are upgraded on load by the steps registered
+     * with {@link DataHandler#registerMigration}, and written back if autoMigrate is set.
+     * Documents that are already up to date are not re-saved on load.
+     * Bump it whenever a migration step is needed; 0 keeps the unversioned behavior.
+     */
+    int version() default 0;
 }
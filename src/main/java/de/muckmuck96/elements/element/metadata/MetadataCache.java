@@ -0,0 +1,254 @@
+package de.muckmuck96.elements.element.metadata;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Supplier;
+import java.util.function.ToIntFunction;
+
+/**
+ * Lock-striped cache with approximate LRU eviction used by {@link DataHandler}.
+ * <p>
+ * Keys are spread over independent segments, each an access-ordered map with its own
+ * lock and a share of the total capacity, so threads only contend when they touch the
+ * same segment. Capacity is measured in weight; with the default weigher every entry
+ * weighs 1, turning the capacity into an entry count. Evicted entries are passed to an
+ * optional hook while the segment lock is still held, so their owner can keep track of them
+ * before a concurrent lookup misses, and to an optional listener after it has been released.
+ * </p>
+ */
+final class MetadataCache<K, V> {
+    private static final int MAX_SEGMENTS = 16;
+    private static final int MIN_WEIGHT_PER_SEGMENT = 32;
+
+    private final Segment<K, V>[] segments;
+    private final ToIntFunction<? super V> weigher;
+    private final BiConsumer<K, V> evictionHook;
+    private final BiConsumer<K, V> evictionListener;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    private static final class Segment<K, V> extends LinkedHashMap<K, V> {
+        final long maxWeight;
+        long weight;
+
+        Segment(long maxWeight) {
+            super(16, 0.75f, true);
+            this.maxWeight = maxWeight;
+        }
+    }
+
+    MetadataCache(long maxWeight) {
+        this(maxWeight, value -> 1, null);
+    }
+
+    /**
+     * @param maxWeight        total capacity
+     * @param weigher          weight of a single value
+     * @param evictionListener called for every evicted entry, may be null
+     */
+    MetadataCache(long maxWeight, ToIntFunction<? super V> weigher, BiConsumer<K, V> evictionListener) {
+        this(maxWeight, weigher, null, evictionListener);
+    }
+
+    /**
+     * @param maxWeight        total capacity
+     * @param weigher          weight of a single value
+     * @param evictionHook     called for every evicted entry under the segment lock, may be null;
+     *                         must be quick and must not use this cache
+     * @param evictionListener called for every evicted entry, may be null
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    MetadataCache(long maxWeight, ToIntFunction<? super V> weigher, BiConsumer<K, V> evictionHook,
+                  BiConsumer<K, V> evictionListener) {
+        if (maxWeight <= 0) {
+            throw new IllegalArgumentException("maxWeight must be positive");
+        }
+        int count = (int) Math.min(MAX_SEGMENTS, Math.max(1, maxWeight / MIN_WEIGHT_PER_SEGMENT));
+        count = Integer.highestOneBit(count);
+        this.segments = new Segment[count];
+        long perSegment = Math.max(1, maxWeight / count);
+        for (int i = 0; i < count; i++) {
+            segments[i] = new Segment<>(perSegment);
+        }
+        this.weigher = weigher;
+        this.evictionHook = evictionHook;
+        this.evictionListener = evictionListener;
+    }
+
+    V get(K key) {
+        Segment<K, V> segment = segmentFor(key);
+        V value;
+        synchronized (segment) {
+            value = segment.get(key);
+        }
+        if (value == null) misses.increment();
+        else hits.increment();
+        return value;
+    }
+
+    /**
+     * Looks up an entry without counting it as a hit or miss.
+     */
+    V peek(K key) {
+        Segment<K, V> segment = segmentFor(key);
+        synchronized (segment) {
+            return segment.get(key);
+        }
+    }
+
+    V put(K key, V value) {
+        Segment<K, V> segment = segmentFor(key);
+        List<Map.Entry<K, V>> evicted;
+        V previous;
+        synchronized (segment) {
+            previous = segment.put(key, value);
+            if (previous != null) segment.weight -= weigh(previous);
+            segment.weight += weigh(value);
+            evicted = evict(segment, key);
+        }
+        notifyEvicted(evicted);
+        return previous;
+    }
+
+    V putIfAbsent(K key, V value) {
+        Segment<K, V> segment = segmentFor(key);
+        List<Map.Entry<K, V>> evicted;
+        synchronized (segment) {
+            V existing = segment.get(key);
+            if (existing != null) return existing;
+            segment.put(key, value);
+            segment.weight += weigh(value);
+            evicted = evict(segment, key);
+        }
+        notifyEvicted(evicted);
+        return null;
+    }
+
+    /**
+     * Like {@link #putIfAbsent(Object, Object)}, but asks {@code preferred} under the segment lock
+     * and caches its non-null result instead of {@code value}. Returns the value that is cached.
+     */
+    V putIfAbsent(K key, V value, Supplier<? extends V> preferred) {
+        Segment<K, V> segment = segmentFor(key);
+        List<Map.Entry<K, V>> evicted;
+        V cached;
+        synchronized (segment) {
+            V existing = segment.get(key);
+            if (existing != null) return existing;
+            V override = preferred.get();
+            cached = override != null ? override : value;
+            segment.put(key, cached);
+            segment.weight += weigh(cached);
+            evicted = evict(segment, key);
+        }
+        notifyEvicted(evicted);
+        return cached;
+    }
+
+    V computeIfPresent(K key, BiFunction<? super K, ? super V, ? extends V> remapping) {
+        Segment<K, V> segment = segmentFor(key);
+        List<Map.Entry<K, V>> evicted;
+        V updated;
+        synchronized (segment) {
+            V previous = segment.get(key);
+            if (previous == null) return null;
+            updated = remapping.apply(key, previous);
+            segment.weight -= weigh(previous);
+            if (updated == null) {
+                segment.remove(key);
+                return null;
+            }
+            segment.put(key, updated);
+            segment.weight += weigh(updated);
+            evicted = evict(segment, key);
+        }
+        notifyEvicted(evicted);
+        return updated;
+    }
+
+    V remove(K key) {
+        Segment<K, V> segment = segmentFor(key);
+        synchronized (segment) {
+            V previous = segment.remove(key);
+            if (previous != null) segment.weight -= weigh(previous);
+            return previous;
+        }
+    }
+
+    /**
+     * @return a point-in-time copy of all entries, in no particular order
+     */
+    List<Map.Entry<K, V>> snapshot() {
+        List<Map.Entry<K, V>> entries = new ArrayList<>();
+        for (Segment<K, V> segment : segments) {
+            synchronized (segment) {
+                for (Map.Entry<K, V> entry : segment.entrySet()) {
+                    entries.add(new AbstractMap.SimpleImmutableEntry<>(entry));
+                }
+            }
+        }
+        return entries;
+    }
+
+    void clear() {
+        for (Segment<K, V> segment : segments) {
+            synchronized (segment) {
+                segment.clear();
+                segment.weight = 0;
+            }
+        }
+    }
+
+    CacheStats stats() {
+        long size = 0;
+        long weight = 0;
+        for (Segment<K, V> segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+                weight += segment.weight;
+            }
+        }
+        return new CacheStats(hits.sum(), misses.sum(), evictions.sum(), size, weight);
+    }
+
+    private List<Map.Entry<K, V>> evict(Segment<K, V> segment, K keep) {
+        if (segment.weight <= segment.maxWeight) return List.of();
+        List<Map.Entry<K, V>> evicted = new ArrayList<>(1);
+        Iterator<Map.Entry<K, V>> it = segment.entrySet().iterator();
+        while (segment.weight > segment.maxWeight && it.hasNext()) {
+            Map.Entry<K, V> eldest = it.next();
+            if (eldest.getKey().equals(keep)) continue;
+            evicted.add(new AbstractMap.SimpleImmutableEntry<>(eldest));
+            if (evictionHook != null) evictionHook.accept(eldest.getKey(), eldest.getValue());
+            it.remove();
+            segment.weight -= weigh(eldest.getValue());
+            evictions.increment();
+        }
+        return evicted;
+    }
+
+    private void notifyEvicted(List<Map.Entry<K, V>> evicted) {
+        if (evictionListener == null) return;
+        for (Map.Entry<K, V> entry : evicted) {
+            evictionListener.accept(entry.getKey(), entry.getValue());
+        }
+    }
+
+    private int weigh(V value) {
+        return Math.max(1, weigher.applyAsInt(value));
+    }
+
+    private Segment<K, V> segmentFor(K key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return segments[h & (segments.length - 1)];
+    }
+}
@@ -0,0 +1,38 @@
+package de.muckmuck96.elements.element.metadata;
+
+import java.io.IOException;
+
+/**
+ * How stored data is compressed at rest.
+ */
+public enum MetadataCompression {
+    NONE(""),
+
+    /**
+     * gzip at a fast compression level, files get {@code .gz} appended (e.g. {@code .json.gz}).
+     * Repetitive JSON typically shrinks to a fifth or less, trading CPU on save and load for
+     * fewer bytes written; on fast local disks saves can get slower (see {@code CompressionBenchmark}).
+     */
+    GZIP(".gz");
+
+    private final String extension;
+
+    MetadataCompression(String extension) {
+        this.extension = extension;
+    }
+
+    /**
+     * @return the suffix appended to the format's file extension, empty for {@link #NONE}
+     */
+    public String extension() {
+        return extension;
+    }
+
+    byte[] compress(byte[] bytes) {
+        return this == GZIP ? Gzip.compress(bytes) : bytes;
+    }
+
+    byte[] decompress(byte[] bytes) throws IOException {
+        return this == GZIP ? Gzip.decompress(bytes) : bytes;
+    }
+}
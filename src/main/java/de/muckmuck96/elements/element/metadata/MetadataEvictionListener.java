@@ -0,0 +1,15 @@
+package de.muckmuck96.elements.element.metadata;
+
+/**
+ * Called by {@link DataHandler} whenever a cached instance is evicted because its cache is full.
+ */
+@FunctionalInterface
+public interface MetadataEvictionListener {
+    /**
+     * @param clazz the metadata class
+     * @param id    the id of a pattern storage, or null for singletons
+     * @param value the evicted instance
+     * @param dirty true if the instance was changed via set/save and not yet written
+     */
+    void onEviction(Class<?> clazz, String id, Object value, boolean dirty);
+}
@@ -0,0 +1,397 @@
+package de.muckmuck96.elements.element.metadata;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Secondary indexes over the {@link Indexed} fields of one pattern storage.
+ * <p>
+ * Each index maps field values to ids in sorted order and is updated whenever an instance
+ * is loaded or written. Indexes are persisted as one JSON file next to the data. The file
+ * is deleted as soon as the in-memory index diverges from it and written again by
+ * {@link #persist()}, so after a crash a missing file means the index has to be rebuilt
+ * from the data, which happens on the first query. Both happen under the handler's write
+ * gate, so snapshots never see a file that does not match the data.
+ * </p>
+ */
+final class MetadataIndex {
+    private static final Logger LOGGER = Logger.getLogger(MetadataIndex.class.getName());
+    private static final MethodType GETTER_TYPE = MethodType.methodType(Object.class, Object.class);
+    private static final TypeReference<Map<String, Map<String, Object>>> FILE_TYPE = new TypeReference<>() {};
+
+    private static final class FieldIndex {
+        final String name;
+        final MethodHandle getter;
+        final NavigableMap<Object, Set<String>> byValue = new TreeMap<>(MetadataIndex::compare);
+        final Map<String, Object> byId = new HashMap<>();
+
+        FieldIndex(String name, MethodHandle getter) {
+            this.name = name;
+            this.getter = getter;
+        }
+
+        boolean put(String id, Object value) {
+            Object previous = value == null ? byId.remove(id) : byId.put(id, value);
+            if (Objects.equals(previous, value)) return false;
+            if (previous != null) {
+                Set<String> ids = byValue.get(previous);
+                ids.remove(id);
+                if (ids.isEmpty()) byValue.remove(previous);
+            }
+            if (value != null) {
+                byValue.computeIfAbsent(value, k -> new LinkedHashSet<>()).add(id);
+            }
+            return true;
+        }
+
+        FieldIndex emptyCopy() {
+            return new FieldIndex(name, getter);
+        }
+    }
+
+    private final Class<?> clazz;
+    private final Path file;
+    private final Lock writeGate;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Object rebuildLock = new Object();
+    private volatile Map<String, FieldIndex> fields; // replaced as a whole by rebuild()
+    private Map<String, List<Object>> rebuildUpdates; // updates made while a rebuild is running
+    private boolean built;
+    private boolean dirty;
+    private boolean persisted; // the file matches the in-memory index
+
+    private MetadataIndex(Class<?> clazz, Path file, Map<String, FieldIndex> fields, Lock writeGate) {
+        this.clazz = clazz;
+        this.file = file;
+        this.fields = fields;
+        this.writeGate = writeGate;
+    }
+
+    /**
+     * @param writeGate the shared side of the handler's write gate, held while the file changes
+     * @return the indexes of the class, or null if it has no {@link Indexed} fields
+     * @throws IllegalArgumentException if an indexed field has an unsupported type
+     */
+    static MetadataIndex create(Class<?> clazz, Path file, ObjectMapper mapper, Lock writeGate) {
+        Map<String, FieldIndex> fields = new LinkedHashMap<>();
+        for (Field field : clazz.getDeclaredFields()) {
+            if (!field.isAnnotationPresent(Indexed.class)) continue;
+            if (!isIndexable(field.getType()) || Modifier.isStatic(field.getModifiers())) {
+                throw new IllegalArgumentException("@Indexed field '" + field.getName() + "' of " + clazz.getName()
+                        + " must be a non-static number, string, boolean, char, enum or UUID");
+            }
+            try {
+                field.setAccessible(true);
+                MethodHandle getter = MethodHandles.lookup().unreflectGetter(field).asType(GETTER_TYPE);
+                fields.put(field.getName(), new FieldIndex(field.getName(), getter));
+            } catch (IllegalAccessException | RuntimeException e) {
+                throw new IllegalArgumentException("Failed to access field '" + field.getName()
+                        + "' on " + clazz.getName(), e);
+            }
+        }
+        if (fields.isEmpty()) return null;
+        MetadataIndex index = new MetadataIndex(clazz, file, fields, writeGate);
+        index.load(mapper);
+        return index;
+    }
+
+    boolean isBuilt() {
+        lock.readLock().lock();
+        try {
+            return built;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Updates all indexes with the current field values of an instance.
+     */
+    void update(String id, Object instance) {
+        List<Object> values = values(instance);
+        boolean invalidate;
+        lock.writeLock().lock();
+        try {
+            if (rebuildUpdates != null) rebuildUpdates.put(id, values);
+            boolean changed = put(fields, id, values);
+            if (changed) dirty = true;
+            invalidate = changed && persisted;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        if (invalidate) invalidateFile();
+    }
+
+    /**
+     * Replaces the content of all indexes with the given instances. The new indexes are built
+     * aside and swapped in at the end, so queries keep using the old ones meanwhile.
+     *
+     * @param ids    every stored id
+     * @param loader returns the current instance of an id
+     */
+    void rebuild(Collection<String> ids, Function<String, Object> loader) {
+        synchronized (rebuildLock) {
+            Map<String, FieldIndex> fresh = new LinkedHashMap<>();
+            lock.writeLock().lock();
+            try {
+                fields.forEach((name, index) -> fresh.put(name, index.emptyCopy()));
+                rebuildUpdates = new LinkedHashMap<>();
+            } finally {
+                lock.writeLock().unlock();
+            }
+            try {
+                for (String id : ids) {
+                    Object instance = loader.apply(id);
+                    if (instance != null) put(fresh, id, values(instance));
+                }
+            } catch (RuntimeException e) {
+                lock.writeLock().lock();
+                rebuildUpdates = null;
+                lock.writeLock().unlock();
+                throw e;
+            }
+            boolean invalidate;
+            lock.writeLock().lock();
+            try {
+                // updates made meanwhile are at least as new as what the loader returned
+                rebuildUpdates.forEach((id, values) -> put(fresh, id, values));
+                rebuildUpdates = null;
+                fields = fresh;
+                built = true;
+                dirty = true;
+                invalidate = persisted;
+            } finally {
+                lock.writeLock().unlock();
+            }
+            if (invalidate) invalidateFile();
+        }
+    }
+
+    private List<Object> values(Object instance) {
+        List<Object> values = new ArrayList<>();
+        for (FieldIndex index : fields.values()) {
+            try {
+                values.add(normalize((Object) index.getter.invokeExact(instance)));
+            } catch (Throwable e) {
+                throw new RuntimeException("Failed to read indexed field '" + index.name + "' of " + clazz.getName(), e);
+            }
+        }
+        return values;
+    }
+
+    private static boolean put(Map<String, FieldIndex> fields, String id, List<Object> values) {
+        int i = 0;
+        boolean changed = false;
+        for (FieldIndex index : fields.values()) {
+            changed |= index.put(id, values.get(i++));
+        }
+        return changed;
+    }
+
+    /**
+     * @return ids whose value lies within {@code [from, to]} in ascending order of value;
+     *         a null bound is open
+     */
+    List<String> range(String field, Object from, Object to) {
+        Object low = normalize(from);
+        Object high = normalize(to);
+        lock.readLock().lock();
+        try {
+            NavigableMap<Object, Set<String>> map = field(field).byValue;
+            if (low != null && high != null) map = map.subMap(low, true, high, true);
+            else if (low != null) map = map.tailMap(low, true);
+            else if (high != null) map = map.headMap(high, true);
+            return collect(map, Integer.MAX_VALUE);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return ids whose value matches, in ascending order of value
+     */
+    List<String> filter(String field, Predicate<Object> predicate) {
+        lock.readLock().lock();
+        try {
+            List<String> result = new ArrayList<>();
+            for (Map.Entry<Object, Set<String>> entry : field(field).byValue.entrySet()) {
+                if (predicate.test(entry.getKey())) result.addAll(entry.getValue());
+            }
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return up to {@code limit} ids with the highest values, highest first
+     */
+    List<String> top(String field, int limit) {
+        lock.readLock().lock();
+        try {
+            return collect(field(field).byValue.descendingMap(), limit);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Writes the indexes to their file if they changed since the last write.
+     */
+    void persist(ObjectMapper mapper) {
+        lock.writeLock().lock();
+        try {
+            if (!dirty || !built) return;
+            Map<String, Map<String, Object>> content = new LinkedHashMap<>();
+            for (FieldIndex index : fields.values()) {
+                content.put(index.name, index.byId);
+            }
+            FileWriteBatch batch = new FileWriteBatch(true, false);
+            batch.write(file, mapper.writeValueAsBytes(content), null);
+            batch.commit();
+            dirty = false;
+            persisted = true;
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to write index " + file, e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void load(ObjectMapper mapper) {
+        Map<String, Map<String, Object>> content;
+        try {
+            content = mapper.readValue(Files.readAllBytes(file), FILE_TYPE);
+        } catch (NoSuchFileException e) {
+            return;
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Ignoring unreadable index " + file + ", it will be rebuilt", e);
+            return;
+        }
+        if (!content.keySet().equals(fields.keySet())) return; // indexed fields changed
+        for (FieldIndex index : fields.values()) {
+            content.get(index.name).forEach((id, value) -> index.put(id, normalize(value)));
+        }
+        built = true;
+        persisted = true;
+    }
+
+    /**
+     * Deletes the file once the in-memory index diverged from it. Takes the write gate before
+     * the index lock, in the same order as {@link DataHandler} persisting the indexes.
+     */
+    private void invalidateFile() {
+        writeGate.lock();
+        try {
+            lock.writeLock().lock();
+            try {
+                if (!dirty || !persisted) return; // already deleted, or written again meanwhile
+                Files.deleteIfExists(file);
+                persisted = false;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to invalidate index " + file, e);
+        } finally {
+            writeGate.unlock();
+        }
+    }
+
+    private FieldIndex field(String name) {
+        FieldIndex index = fields.get(name);
+        if (index == null) {
+            throw new IllegalArgumentException("Field '" + name + "' of " + clazz.getName() + " is not @Indexed");
+        }
+        return index;
+    }
+
+    private static List<String> collect(Map<Object, Set<String>> map, int limit) {
+        List<String> result = new ArrayList<>();
+        for (Set<String> ids : map.values()) {
+            for (String id : ids) {
+                if (result.size() >= limit) return result;
+                result.add(id);
+            }
+        }
+        return result;
+    }
+
+    private static boolean isIndexable(Class<?> type) {
+        return type.isPrimitive() || Number.class.isAssignableFrom(type) || type == String.class
+                || type == Boolean.class || type == Character.class || type.isEnum() || type == UUID.class;
+    }
+
+    /**
+     * Maps values to a small set of comparable key types: Long, Double, BigInteger (beyond the
+     * long range), BigDecimal, String and Boolean. Numbers keep their exact value.
+     */
+    private static Object normalize(Object value) {
+        if (value == null || value instanceof Long || value instanceof Double || value instanceof BigDecimal
+                || value instanceof String || value instanceof Boolean) {
+            return value;
+        }
+        if (value instanceof BigInteger big) return big.bitLength() < 64 ? (Object) big.longValue() : big;
+        if (value instanceof Float || value instanceof Double) return ((Number) value).doubleValue();
+        if (value instanceof Number number) return number.longValue();
+        if (value instanceof Enum<?> constant) return constant.name();
+        return value.toString();
+    }
+
+    /**
+     * Compares numbers of different types by their exact value, so longs beyond 2^53 keep
+     * their order next to doubles.
+     */
+    private static int compare(Object a, Object b) {
+        if (a instanceof Long x && b instanceof Long y) return Long.compare(x, y);
+        if (a instanceof Double x && b instanceof Double y) return Double.compare(x, y);
+        if (a instanceof Number x && b instanceof Number y) {
+            if (isNonFinite(x) || isNonFinite(y)) return Double.compare(x.doubleValue(), y.doubleValue());
+            return exact(x).compareTo(exact(y));
+        }
+        if (a instanceof String x && b instanceof String y) return x.compareTo(y);
+        if (a instanceof Boolean x && b instanceof Boolean y) return Boolean.compare(x, y);
+        throw new IllegalArgumentException("Cannot compare " + a + " with " + b);
+    }
+
+    private static boolean isNonFinite(Number number) {
+        return number instanceof Double d && !Double.isFinite(d);
+    }
+
+    private static BigDecimal exact(Number number) {
+        if (number instanceof BigDecimal decimal) return decimal;
+        if (number instanceof BigInteger big) return new BigDecimal(big);
+        if (number instanceof Double d) return new BigDecimal(d);
+        return BigDecimal.valueOf(number.longValue());
+    }
+}
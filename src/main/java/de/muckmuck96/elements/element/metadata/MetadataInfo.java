@@ -1,5 +1,9 @@
 package de.muckmuck96.elements.element.metadata;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+
 final class MetadataInfo {
     final Class<?> clazz;
     final MetadataType type;
@@ -9,9 +13,20 @@ final class MetadataInfo {
     final boolean editable;
     final boolean autoMigrate;
     final boolean config;
+    final MetadataStorage storage;
+    final boolean incremental;
+    final boolean copyOnWrite;
+    final boolean sharded;     // files live in hash-prefixed subdirectories
+    final MetadataCompression compression;
+    final int version;         // schema version, 0 if unversioned
+    final ValidationPlan validationPlan;
+    final ObjectReader reader;
+    final ObjectWriter writer;
 
     MetadataInfo(Class<?> clazz, MetadataType type, String path, String nameTemplate,
-                 boolean pattern, boolean editable, boolean autoMigrate, boolean config) {
+                 boolean pattern, boolean editable, boolean autoMigrate, boolean config,
+                 MetadataStorage storage, boolean incremental, boolean copyOnWrite, boolean pretty,
+                 boolean sharded, MetadataCompression compression, int version, ObjectMapper mapper) {
         this.clazz = clazz;
         this.type = type;
         this.path = path;
@@ -20,5 +35,22 @@ final class MetadataInfo {
         this.editable = editable;
         this.autoMigrate = autoMigrate;
         this.config = config;
+        this.storage = storage;
+        this.incremental = incremental;
+        this.copyOnWrite = copyOnWrite;
+        this.sharded = sharded;
+        this.compression = compression;
+        this.version = version;
+        this.validationPlan = ValidationPlan.compile(clazz);
+        this.reader = mapper.readerFor(clazz);
+        // configs are edited by hand, so they are always pretty-printed
+        this.writer = pretty || config ? mapper.writerFor(clazz).withDefaultPrettyPrinter() : mapper.writerFor(clazz);
+    }
+
+    /**
+     * @return the file extension including compression, e.g. ".json.gz"
+     */
+    String extension() {
+        return type.extension() + compression.extension();
     }
 }
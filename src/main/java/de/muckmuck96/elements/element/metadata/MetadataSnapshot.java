@@ -0,0 +1,18 @@
+package de.muckmuck96.elements.element.metadata;
+
+import java.nio.file.Path;
+import java.time.Duration;
+
+/**
+ * Result of {@link DataHandler#snapshot(Path)}.
+ *
+ * @param directory   the snapshot directory; the files are in its {@code data} subdirectory
+ * @param previous    the snapshot unchanged files were linked from, or null for a full copy
+ * @param files       number of files in the snapshot
+ * @param copied      number of files copied because they are new or changed
+ * @param linked      number of files hard-linked to the previous snapshot
+ * @param copiedBytes total size of the copied files
+ * @param writePause  how long writes were held back while the snapshot was taken
+ */
+public record MetadataSnapshot(Path directory, Path previous, int files, int copied, int linked,
+                               long copiedBytes, Duration writePause) {}
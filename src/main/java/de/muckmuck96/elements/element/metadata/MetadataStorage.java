@@ -0,0 +1,17 @@
+package de.muckmuck96.elements.element.metadata;
+
+/**
+ * How a pattern storage ({@code name} contains "{id}") is laid out on disk.
+ */
+public enum MetadataStorage {
+    /**
+     * One file per id, e.g. {@code players/player_<uuid>.json}.
+     */
+    FILES,
+
+    /**
+     * All ids of a class in a single append-only log ({@code <ClassName>.log}) with an
+     * in-memory offset index. Suited for storages with a very large number of ids.
+     */
+    LOG
+}
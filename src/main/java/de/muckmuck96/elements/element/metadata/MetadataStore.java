@@ -0,0 +1,61 @@
+package de.muckmuck96.elements.element.metadata;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Storage backend of a {@link DataHandler}.
+ * <p>
+ * By default every metadata instance is stored in its own file. A store replaces the
+ * files of all storages except configs, which stay files so they can be edited by hand.
+ * Values are the serialized bytes in the storage's {@link MetadataType}; they are grouped
+ * by namespace (one per {@code @Metadata} class, derived from its path and name) and keyed
+ * by id, or {@code ""} for singletons.
+ * </p>
+ * Implementations must be thread-safe.
+ */
+public interface MetadataStore extends Closeable {
+
+    /**
+     * @return the stored value, or null if the key does not exist
+     */
+    byte[] read(String namespace, String key) throws IOException;
+
+    /**
+     * @return all keys of the namespace
+     */
+    Set<String> keys(String namespace) throws IOException;
+
+    /**
+     * Applies all changes atomically: after a crash either all or none of them are visible.
+     *
+     * @param changes values by key, by namespace; a null value deletes the key
+     */
+    void apply(Map<String, Map<String, byte[]>> changes) throws IOException;
+
+    /**
+     * Forces applied changes to disk.
+     */
+    void sync() throws IOException;
+
+    /**
+     * Reclaims space of overwritten and deleted values. Called by {@link DataHandler#compactLogs()}.
+     */
+    default void compact() throws IOException {}
+
+    /**
+     * Opens an embedded single-file store, see {@link EmbeddedMetadataStore}.
+     *
+     * @param file the store file, created if it does not exist
+     */
+    static MetadataStore embedded(Path file) {
+        try {
+            return new EmbeddedMetadataStore(file);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to open metadata store " + file, e);
+        }
+    }
+}
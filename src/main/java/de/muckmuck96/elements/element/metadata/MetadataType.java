@@ -1,6 +1,24 @@
 package de.muckmuck96.elements.element.metadata;
 
 public enum MetadataType {
-    JSON,
-    YAML
+    JSON(".json"),
+    YAML(".yml"),
+    /**
+     * Binary JSON (Jackson Smile). Smaller and faster to parse than JSON,
+     * but not human-readable.
+     */
+    SMILE(".smile");
+
+    private final String extension;
+
+    MetadataType(String extension) {
+        this.extension = extension;
+    }
+
+    /**
+     * @return the file extension including the leading dot
+     */
+    public String extension() {
+        return extension;
+    }
 }
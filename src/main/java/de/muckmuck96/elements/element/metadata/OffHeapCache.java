@@ -0,0 +1,128 @@
+package de.muckmuck96.elements.element.metadata;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Second cache tier of {@link DataHandler} that keeps serialized entries outside the heap.
+ * <p>
+ * Memory is split into a fixed number of direct {@link ByteBuffer} slabs that are filled
+ * one after another like a ring. When the ring wraps, the oldest slab is reused and every
+ * entry still stored in it is dropped at once, so there is no per-entry allocation or
+ * fragmentation and the values never count towards the GC-managed heap. Reading an entry
+ * removes it, because it moves back into the heap tier.
+ * </p>
+ */
+final class OffHeapCache {
+    private static final int MAX_SLAB_SIZE = 4 * 1024 * 1024;
+    private static final int MIN_SLAB_SIZE = 64 * 1024;
+
+    private record Location(int slab, int offset, int length) {}
+
+    private final int slabSize;
+    private final ByteBuffer[] slabs;
+    private final List<List<String>> slabKeys;
+    private final Map<String, Location> index = new HashMap<>();
+    private int current;
+    private int position;
+    private long bytes;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    OffHeapCache(long maxBytes) {
+        if (maxBytes < 2L * MIN_SLAB_SIZE) {
+            throw new IllegalArgumentException("maxBytes must be at least " + (2 * MIN_SLAB_SIZE));
+        }
+        this.slabSize = (int) Math.max(MIN_SLAB_SIZE, Math.min(MAX_SLAB_SIZE, maxBytes / 4));
+        int count = (int) Math.min(Integer.MAX_VALUE, maxBytes / slabSize);
+        this.slabs = new ByteBuffer[count];
+        this.slabKeys = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            slabKeys.add(new ArrayList<>());
+        }
+    }
+
+    /**
+     * Stores a value, replacing an older one. Values larger than a slab are not cached.
+     */
+    synchronized void put(String key, byte[] value) {
+        remove(key);
+        if (value.length > slabSize) return;
+        if (slabs[current] == null) {
+            slabs[current] = ByteBuffer.allocateDirect(slabSize);
+        }
+        if (position + value.length > slabSize) {
+            current = (current + 1) % slabs.length;
+            position = 0;
+            recycle(current);
+        }
+        slabs[current].put(position, value);
+        index.put(key, new Location(current, position, value.length));
+        slabKeys.get(current).add(key);
+        position += value.length;
+        bytes += value.length;
+    }
+
+    /**
+     * Removes and returns a value.
+     *
+     * @return the value, or null if it is not cached
+     */
+    synchronized byte[] take(String key) {
+        Location location = index.remove(key);
+        if (location == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        bytes -= location.length();
+        byte[] value = new byte[location.length()];
+        slabs[location.slab()].get(location.offset(), value);
+        return value;
+    }
+
+    synchronized void remove(String key) {
+        Location location = index.remove(key);
+        if (location != null) bytes -= location.length();
+    }
+
+    /**
+     * Removes every key starting with the prefix.
+     */
+    synchronized void removePrefix(String prefix) {
+        Iterator<Map.Entry<String, Location>> it = index.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Location> entry = it.next();
+            if (entry.getKey().startsWith(prefix)) {
+                bytes -= entry.getValue().length();
+                it.remove();
+            }
+        }
+    }
+
+    synchronized CacheStats stats() {
+        return new CacheStats(hits, misses, evictions, index.size(), bytes);
+    }
+
+    private void recycle(int slab) {
+        if (slabs[slab] == null) {
+            slabs[slab] = ByteBuffer.allocateDirect(slabSize);
+            return;
+        }
+        List<String> keys = slabKeys.get(slab);
+        for (String key : keys) {
+            Location location = index.get(key);
+            if (location != null && location.slab() == slab) {
+                index.remove(key);
+                bytes -= location.length();
+                evictions++;
+            }
+        }
+        keys.clear();
+    }
+}
@@ -0,0 +1,84 @@
+package de.muckmuck96.elements.element.metadata;
+
+import org.bukkit.Bukkit;
+import org.bukkit.OfflinePlayer;
+import org.bukkit.entity.Player;
+
+import java.util.Objects;
+import java.util.UUID;
+
+/**
+ * Lightweight reference to a player by UUID, with the last known name.
+ * <p>
+ * Unlike a {@link Player} field, loading a reference does not look up the player,
+ * so metadata can be loaded off the main thread and for offline players. The player
+ * is only resolved when {@link #getPlayer()} is called. Stored in the same
+ * {@code {"uuid": ...}} format as {@link Player} fields, plus the name.
+ * </p>
+ */
+public final class PlayerRef {
+    private final UUID uuid;
+    private volatile String name;
+
+    private PlayerRef(UUID uuid, String name) {
+        this.uuid = Objects.requireNonNull(uuid, "uuid");
+        this.name = name;
+    }
+
+    public static PlayerRef of(OfflinePlayer player) {
+        return new PlayerRef(player.getUniqueId(), player.getName());
+    }
+
+    public static PlayerRef of(UUID uuid) {
+        return new PlayerRef(uuid, null);
+    }
+
+    public static PlayerRef of(UUID uuid, String name) {
+        return new PlayerRef(uuid, name);
+    }
+
+    public UUID getUniqueId() {
+        return uuid;
+    }
+
+    /**
+     * @return the last known name, may be null if the player was never seen online
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Looks up the player. Must be called on the main thread.
+     *
+     * @return the online player, or null if offline; also refreshes the cached name
+     */
+    public Player getPlayer() {
+        Player player = Bukkit.getPlayer(uuid);
+        if (player != null) name = player.getName();
+        return player;
+    }
+
+    public OfflinePlayer getOfflinePlayer() {
+        return Bukkit.getOfflinePlayer(uuid);
+    }
+
+    public boolean isOnline() {
+        return getPlayer() != null;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof PlayerRef other && uuid.equals(other.uuid);
+    }
+
+    @Override
+    public int hashCode() {
+        return uuid.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return name != null ? name + "(" + uuid + ")" : uuid.toString();
+    }
+}
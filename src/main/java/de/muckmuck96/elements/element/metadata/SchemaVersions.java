@@ -0,0 +1,100 @@
+package de.muckmuck96.elements.element.metadata;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.util.JsonGeneratorDelegate;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+/**
+ * Reads and writes the schema version of {@code @Metadata(version = ...)} classes.
+ * <p>
+ * The version is stored as a {@value #FIELD} property in front of the object's own
+ * properties. Writing injects it into the generator instead of going through a tree,
+ * and reading checks the first property, so documents that are already up to date
+ * are parsed straight into the object as before.
+ * </p>
+ */
+final class SchemaVersions {
+    static final String FIELD = "_version";
+
+    private SchemaVersions() {}
+
+    static byte[] write(ObjectWriter writer, Object obj, int version) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+        try (JsonGenerator gen = new VersionedGenerator(writer.createGenerator(out), version)) {
+            writer.writeValue(gen, obj);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * @return the stored version if it is the first property, 0 if there is none,
+     * or -1 if the document must be parsed to find it
+     */
+    static int peek(ObjectMapper mapper, byte[] raw) throws IOException {
+        try (JsonParser parser = mapper.createParser(raw)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) return -1;
+            JsonToken token = parser.nextToken();
+            if (token == JsonToken.END_OBJECT) return 0;
+            if (token == JsonToken.FIELD_NAME && FIELD.equals(parser.currentName())
+                    && parser.nextToken() == JsonToken.VALUE_NUMBER_INT) {
+                return parser.getIntValue();
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * @return the version of a parsed document, 0 if it has none
+     */
+    static int of(JsonNode tree) {
+        return tree.path(FIELD).asInt(0);
+    }
+
+    /**
+     * Writes the version as the first property of the root object.
+     */
+    private static final class VersionedGenerator extends JsonGeneratorDelegate {
+        private final int version;
+
+        VersionedGenerator(JsonGenerator delegate, int version) {
+            super(delegate, true);
+            this.version = version;
+        }
+
+        @Override
+        public void writeStartObject() throws IOException {
+            boolean root = inRoot();
+            super.writeStartObject();
+            if (root) writeVersion();
+        }
+
+        @Override
+        public void writeStartObject(Object forValue) throws IOException {
+            boolean root = inRoot();
+            super.writeStartObject(forValue);
+            if (root) writeVersion();
+        }
+
+        @Override
+        public void writeStartObject(Object forValue, int size) throws IOException {
+            boolean root = inRoot();
+            super.writeStartObject(forValue, size);
+            if (root) writeVersion();
+        }
+
+        private boolean inRoot() {
+            return getOutputContext().inRoot();
+        }
+
+        private void writeVersion() throws IOException {
+            delegate.writeNumberField(FIELD, version);
+        }
+    }
+}
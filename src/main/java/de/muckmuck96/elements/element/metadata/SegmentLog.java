@@ -0,0 +1,302 @@
+package de.muckmuck96.elements.element.metadata;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32C;
+
+/**
+ * Append-only key/value log with an in-memory offset index.
+ * <p>
+ * Every write appends a record; the index maps each key to the offset of its latest
+ * value. Records carry a CRC, and a record flagged as commit closes a batch, so after
+ * a crash only complete batches are replayed and a torn tail is truncated. Space of
+ * overwritten records is reclaimed by {@link #compact()}.
+ * </p>
+ * Record layout: {@code crc(4) flags(1) keyLength(4) valueLength(4) key value},
+ * where a value length of -1 marks a deletion.
+ */
+final class SegmentLog implements Closeable {
+    private static final Logger LOGGER = Logger.getLogger(SegmentLog.class.getName());
+    private static final int HEADER_SIZE = 13;
+    private static final byte FLAG_COMMIT = 1;
+    private static final int TOMBSTONE = -1;
+    private static final long MIN_COMPACTION_SIZE = 1024L * 1024L;
+
+    private record Location(long valueOffset, int valueLength, int recordLength) {}
+
+    private final Path file;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<String, Location> index = new ConcurrentHashMap<>();
+    private FileChannel channel;
+    private long size;
+    private long liveBytes;
+
+    SegmentLog(Path file) throws IOException {
+        this.file = file;
+        Files.createDirectories(file.getParent());
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        recover();
+    }
+
+    Path file() {
+        return file;
+    }
+
+    /**
+     * @return the latest value for the key, or null if absent
+     */
+    byte[] read(String key) throws IOException {
+        lock.readLock().lock();
+        try {
+            Location location = index.get(key);
+            if (location == null) return null;
+            ByteBuffer buffer = ByteBuffer.allocate(location.valueLength());
+            readFully(channel, buffer, location.valueOffset());
+            return buffer.array();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    boolean contains(String key) {
+        return index.containsKey(key);
+    }
+
+    Set<String> keys() {
+        return Set.copyOf(index.keySet());
+    }
+
+    void write(String key, byte[] value) throws IOException {
+        Map<String, byte[]> single = new LinkedHashMap<>(1);
+        single.put(key, value);
+        writeBatch(single);
+    }
+
+    void delete(String key) throws IOException {
+        Map<String, byte[]> single = new LinkedHashMap<>(1);
+        single.put(key, null);
+        writeBatch(single);
+    }
+
+    /**
+     * Appends all entries as one batch; a null value deletes the key. After a crash
+     * either all or none of the entries are visible.
+     */
+    void writeBatch(Map<String, byte[]> entries) throws IOException {
+        if (entries.isEmpty()) return;
+        lock.writeLock().lock();
+        try {
+            int total = 0;
+            for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+                total += recordLength(entry.getKey(), entry.getValue());
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(total);
+            int remaining = entries.size();
+            for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+                encode(buffer, entry.getKey(), entry.getValue(), --remaining == 0);
+            }
+            buffer.flip();
+            long start = size;
+            try {
+                writeFully(channel, buffer, start);
+            } catch (IOException e) {
+                // keep the file append-only: the next batch would overwrite a partial one in place
+                try {
+                    channel.truncate(start);
+                } catch (IOException suppressed) {
+                    e.addSuppressed(suppressed);
+                }
+                throw e;
+            }
+            size += total;
+
+            long offset = start;
+            for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+                int length = recordLength(entry.getKey(), entry.getValue());
+                apply(entry.getKey(), entry.getValue() == null ? null
+                        : new Location(offset + length - entry.getValue().length, entry.getValue().length, length));
+                offset += length;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Forces appended records to disk.
+     */
+    void sync() throws IOException {
+        lock.readLock().lock();
+        try {
+            channel.force(false);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return true if more than half of the log consists of overwritten or deleted records
+     */
+    boolean needsCompaction() {
+        lock.readLock().lock();
+        try {
+            return size > MIN_COMPACTION_SIZE && size > liveBytes * 2;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Rewrites the log with only the latest value of every key and atomically
+     * replaces the old log.
+     */
+    void compact() throws IOException {
+        lock.writeLock().lock();
+        try {
+            Path temp = file.resolveSibling(file.getFileName() + ".compact");
+            Map<String, Location> compacted = new LinkedHashMap<>();
+            long offset = 0;
+            try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                for (Map.Entry<String, Location> entry : index.entrySet()) {
+                    Location location = entry.getValue();
+                    ByteBuffer value = ByteBuffer.allocate(location.valueLength());
+                    readFully(channel, value, location.valueOffset());
+                    int length = recordLength(entry.getKey(), value.array());
+                    ByteBuffer record = ByteBuffer.allocate(length);
+                    encode(record, entry.getKey(), value.array(), true);
+                    record.flip();
+                    writeFully(out, record, offset);
+                    compacted.put(entry.getKey(), new Location(offset + length - location.valueLength(),
+                            location.valueLength(), length));
+                    offset += length;
+                }
+                out.force(true);
+            }
+            channel.close();
+            try {
+                Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+            channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            index.clear();
+            index.putAll(compacted);
+            size = offset;
+            liveBytes = offset;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        lock.writeLock().lock();
+        try {
+            if (channel.isOpen()) {
+                channel.force(true);
+                channel.close();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void recover() throws IOException {
+        long fileSize = channel.size();
+        long position = 0;
+        long committed = 0;
+        Map<String, Location> batch = new LinkedHashMap<>();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        CRC32C crc = new CRC32C();
+
+        while (position + HEADER_SIZE <= fileSize) {
+            header.clear();
+            readFully(channel, header, position);
+            header.flip();
+            int storedCrc = header.getInt();
+            byte flags = header.get();
+            int keyLength = header.getInt();
+            int valueLength = header.getInt();
+            if (keyLength < 0 || valueLength < TOMBSTONE) break;
+            long length = (long) HEADER_SIZE + keyLength + Math.max(valueLength, 0);
+            if (position + length > fileSize) break;
+
+            ByteBuffer body = ByteBuffer.allocate((int) length - 4);
+            readFully(channel, body, position + 4);
+            crc.reset();
+            crc.update(body.array());
+            if ((int) crc.getValue() != storedCrc) break;
+
+            String key = new String(body.array(), 9, keyLength, StandardCharsets.UTF_8);
+            batch.put(key, valueLength == TOMBSTONE ? null
+                    : new Location(position + HEADER_SIZE + keyLength, valueLength, (int) length));
+            position += length;
+            if ((flags & FLAG_COMMIT) != 0) {
+                batch.forEach(this::apply);
+                batch.clear();
+                committed = position;
+            }
+        }
+
+        if (committed < fileSize) {
+            LOGGER.log(Level.WARNING, "Truncating " + (fileSize - committed)
+                    + " bytes of incomplete records from " + file);
+            channel.truncate(committed);
+        }
+        size = committed;
+    }
+
+    private void apply(String key, Location location) {
+        Location previous = location == null ? index.remove(key) : index.put(key, location);
+        if (previous != null) liveBytes -= previous.recordLength();
+        if (location != null) liveBytes += location.recordLength();
+    }
+
+    private static int recordLength(String key, byte[] value) {
+        return HEADER_SIZE + key.getBytes(StandardCharsets.UTF_8).length + (value == null ? 0 : value.length);
+    }
+
+    private static void encode(ByteBuffer buffer, String key, byte[] value, boolean commit) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        int start = buffer.position();
+        buffer.putInt(0);
+        buffer.put(commit ? FLAG_COMMIT : 0);
+        buffer.putInt(keyBytes.length);
+        buffer.putInt(value == null ? TOMBSTONE : value.length);
+        buffer.put(keyBytes);
+        if (value != null) buffer.put(value);
+
+        CRC32C crc = new CRC32C();
+        crc.update(buffer.array(), start + 4, buffer.position() - start - 4);
+        buffer.putInt(start, (int) crc.getValue());
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) throw new IOException("Unexpected end of log");
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, position + buffer.position());
+        }
+    }
+}
@@ -0,0 +1,513 @@
+package de.muckmuck96.elements.element.metadata;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * Writes incremental snapshots of a DataHandler's data directory.
+ * <p>
+ * A snapshot is a directory holding a copy of the data directory in {@code data/} and a
+ * {@code manifest.json} with the size, modification time and SHA-256 of every file. Files
+ * that are unchanged since the newest snapshot next to the target are hard-linked to it
+ * instead of copied, so every snapshot is complete on its own while only changed files
+ * take space. A file counts as unchanged if its size and modification time match the
+ * manifest and the handler has not written it since; only files modified so close to the
+ * previous snapshot that a later write may not have moved the timestamp are read to tell.
+ * The manifest is written last, so an interrupted snapshot is never used as the base of
+ * the next one.
+ * </p>
+ * <p>
+ * Files are copied while writes go on. The handler reports every file it writes in the
+ * meantime to a {@link Changes}; once the copy is done, writes are held back only while
+ * those files are copied again, so the result is the state at that moment. Append-only
+ * files (logs, the embedded store) are not copied during that pause: only their length is
+ * taken, and the bytes appended since the first copy are added once writes go on again.
+ * Writes are also held back briefly when the tracking starts, so no write in progress
+ * goes unreported.
+ * </p>
+ */
+final class SnapshotWriter {
+    private static final Logger LOGGER = Logger.getLogger(SnapshotWriter.class.getName());
+    static final String MANIFEST = "manifest.json";
+    static final String DATA = "data";
+    private static final long LOCK_ATTEMPT_MILLIS = 100L;
+    private static final long LOCK_BACKOFF_MILLIS = 10L;
+    private static final long MTIME_GRANULARITY_MILLIS = 2000L; // FAT; other file systems are finer
+
+    private record FileState(long size, long modified, String sha256) {}
+
+    /**
+     * How far an append-only file was copied, so only what is appended later is copied again.
+     */
+    private record Copied(long length, MessageDigest digest, Object fileKey) {}
+
+    /**
+     * An append-only file opened while writes were held back, copied up to {@code size} afterwards.
+     */
+    private record Capture(Path file, String name, FileChannel channel, long size, FileTime modified,
+                           boolean rewritten) {}
+
+    private record Manifest(Path directory, Instant created, Map<String, FileState> files) {}
+
+    /**
+     * Files written by the handler since a snapshot started. Must be reported while the
+     * write still holds the shared side of the lock.
+     */
+    static final class Changes {
+        private final Set<Path> files = ConcurrentHashMap.newKeySet();
+        private final Set<Path> appended = ConcurrentHashMap.newKeySet();
+        private volatile boolean unknown;
+
+        /**
+         * Reports a file that was rewritten, replaced or deleted.
+         */
+        void add(Path file) {
+            files.add(file.toAbsolutePath().normalize());
+        }
+
+        /**
+         * Reports bytes appended to an append-only file; everything before stays as it was.
+         */
+        void addAppended(Path file) {
+            appended.add(file.toAbsolutePath().normalize());
+        }
+
+        /**
+         * Reports a write to files that are not known, e.g. those of a custom store; all
+         * files are compared again then.
+         */
+        void addUnknown() {
+            unknown = true;
+        }
+
+        private Set<Path> written() {
+            Set<Path> written = new HashSet<>(files);
+            written.addAll(appended);
+            return written;
+        }
+    }
+
+    private final Path baseDir;
+    private final Lock writeLock;
+    private final ObjectMapper mapper;
+    private final UnaryOperator<Changes> tracker;
+    private final Predicate<Path> appendOnly;
+
+    /**
+     * @param writeLock  the exclusive side of the lock every write to the data directory holds shared
+     * @param tracker    installs the changes writes are reported to from now on and returns the
+     *                   previously installed ones (null before the first snapshot)
+     * @param appendOnly the files the handler only ever appends to, or replaces as a whole
+     */
+    SnapshotWriter(Path baseDir, Lock writeLock, ObjectMapper mapper, UnaryOperator<Changes> tracker,
+                   Predicate<Path> appendOnly) {
+        this.baseDir = baseDir.toAbsolutePath().normalize();
+        this.writeLock = writeLock;
+        this.mapper = mapper;
+        this.tracker = tracker;
+        this.appendOnly = appendOnly;
+    }
+
+    MetadataSnapshot write(Path target) throws IOException {
+        Path directory = target.toAbsolutePath().normalize();
+        if (directory.startsWith(baseDir)) {
+            throw new IllegalArgumentException("Snapshot target must not be inside the data directory: " + target);
+        }
+        if (Files.exists(directory) && !isEmptyDirectory(directory)) {
+            throw new IllegalArgumentException("Snapshot target already exists: " + target);
+        }
+        Manifest previous = findPrevious(directory);
+        Path data = directory.resolve(DATA);
+        Files.createDirectories(data);
+
+        Map<String, FileState> files = new TreeMap<>();
+        Set<String> linked = new HashSet<>();
+        Map<String, Copied> appendable = new HashMap<>();
+        Changes changes = new Changes();
+        Changes sincePrevious;
+        Instant started;
+        long pause;
+        lockWrites();
+        long pauseStart = System.nanoTime();
+        try {
+            sincePrevious = tracker.apply(changes);
+            started = Instant.now();
+        } finally {
+            pause = System.nanoTime() - pauseStart;
+            writeLock.unlock();
+        }
+        // written since the last snapshot: compared by content even if size and time match
+        Set<Path> suspects = sincePrevious == null ? Set.of() : sincePrevious.written();
+        for (Path source : sources()) {
+            copy(source, previous, suspects, data, files, linked, appendable);
+        }
+
+        Instant created;
+        List<Capture> captures = new ArrayList<>();
+        try {
+            lockWrites();
+            pauseStart = System.nanoTime();
+            try {
+                // tracks the writes the next snapshot has to look at
+                tracker.apply(new Changes());
+                created = Instant.now();
+                Collection<Path> written = changes.unknown ? sources() : changes.written();
+                if (changes.unknown) {
+                    // anything may have changed: also drop files deleted meanwhile
+                    Set<String> present = new HashSet<>();
+                    written.forEach(file -> present.add(relativeName(file)));
+                    for (String name : List.copyOf(files.keySet())) {
+                        if (!present.contains(name)) remove(name, data, files, linked);
+                    }
+                }
+                for (Path file : written) {
+                    if (!file.startsWith(baseDir) || !included(file)) continue;
+                    String name = relativeName(file);
+                    if (changes.unknown && unchanged(file, files.get(name), started)) continue;
+                    if (appendOnly.test(file) && Files.isRegularFile(file)) {
+                        Capture capture = capture(file, name, changes, appendable.get(name), linked);
+                        if (capture != null) captures.add(capture);
+                        continue;
+                    }
+                    if (Files.isRegularFile(file)) {
+                        copy(file, null, Set.of(), data, files, linked, null);
+                    } else {
+                        remove(name, data, files, linked);
+                    }
+                }
+            } finally {
+                pause += System.nanoTime() - pauseStart;
+                writeLock.unlock();
+            }
+            for (Capture capture : captures) {
+                copyCaptured(capture, appendable.get(capture.name()), data, files, linked);
+            }
+        } finally {
+            for (Capture capture : captures) {
+                capture.channel().close();
+            }
+        }
+
+        long copiedBytes = 0;
+        for (Map.Entry<String, FileState> file : files.entrySet()) {
+            if (!linked.contains(file.getKey())) copiedBytes += file.getValue().size();
+        }
+        writeManifest(directory, previous, created, files);
+        return new MetadataSnapshot(directory, previous == null ? null : previous.directory(), files.size(),
+                files.size() - linked.size(), linked.size(), copiedBytes, Duration.ofNanos(pause));
+    }
+
+    /**
+     * Puts a file into the snapshot: hard-linked to the previous snapshot if it is unchanged
+     * there, copied otherwise. A file already in the snapshot is replaced, never written
+     * through, since it may be a link.
+     *
+     * @param suspects   files that count as changed even if their size and time match
+     * @param appendable where to remember how far append-only files were copied, or null
+     */
+    private void copy(Path source, Manifest previous, Set<Path> suspects, Path data, Map<String, FileState> files,
+                      Set<String> linked, Map<String, Copied> appendable) throws IOException {
+        String name = relativeName(source);
+        Path copy = data.resolve(name);
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(source, BasicFileAttributes.class);
+            FileState before = previous == null ? null : previous.files().get(name);
+            Path existing = before == null || before.sha256() == null
+                    ? null : previous.directory().resolve(DATA).resolve(name);
+            if (existing != null && before.size() == attributes.size()
+                    && before.modified() == attributes.lastModifiedTime().toMillis()
+                    && before.modified() < previous.created().toEpochMilli() - MTIME_GRANULARITY_MILLIS
+                    && !suspects.contains(source) && Files.isRegularFile(existing)) {
+                link(existing, copy);
+                files.put(name, new FileState(attributes.size(), before.modified(), before.sha256()));
+                linked.add(name);
+                if (appendable != null) appendable.remove(name);
+                return;
+            }
+
+            Files.createDirectories(copy.getParent());
+            Files.deleteIfExists(copy);
+            linked.remove(name);
+            files.remove(name);
+            MessageDigest digest = sha256();
+            long size;
+            try (InputStream in = new DigestInputStream(Files.newInputStream(source), digest)) {
+                size = Files.copy(in, copy);
+            }
+            Files.setLastModifiedTime(copy, attributes.lastModifiedTime());
+            if (appendable != null && appendOnly.test(source)) {
+                appendable.put(name, new Copied(size, clone(digest), attributes.fileKey()));
+            }
+            String sha256 = HexFormat.of().formatHex(digest.digest());
+            files.put(name, new FileState(size, attributes.lastModifiedTime().toMillis(), sha256));
+            if (existing != null && before.size() == size && before.sha256().equals(sha256)
+                    && Files.isRegularFile(existing)) {
+                // written, but to the same content: share the previous snapshot's file after all
+                Files.delete(copy);
+                link(existing, copy);
+                linked.add(name);
+                if (appendable != null) appendable.remove(name);
+            }
+        } catch (NoSuchFileException e) {
+            // deleted meanwhile
+            remove(name, data, files, linked);
+        }
+    }
+
+    private static void link(Path existing, Path copy) throws IOException {
+        Files.createDirectories(copy.getParent());
+        try {
+            Files.createLink(copy, existing);
+        } catch (UnsupportedOperationException | FileSystemException e) {
+            // no hard links here (or across these directories): fall back to a copy
+            Files.copy(existing, copy, StandardCopyOption.COPY_ATTRIBUTES);
+        }
+    }
+
+    /**
+     * Opens an append-only file and takes its length while writes are held back; the bytes
+     * are copied by {@link #copyCaptured} once they go on again. Appends after this do not
+     * matter since only {@code size} bytes are read, and a compaction replaces the file
+     * instead of changing the one that is open.
+     *
+     * @return null if the file has not grown since it was copied
+     */
+    private static Capture capture(Path file, String name, Changes changes, Copied copied, Set<String> linked)
+            throws IOException {
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(file, StandardOpenOption.READ);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            long size = channel.size();
+            boolean rewritten = copied == null || linked.contains(name) || changes.files.contains(file)
+                    || size < copied.length()
+                    || (copied.fileKey() != null && !copied.fileKey().equals(attributes.fileKey()));
+            if (!rewritten && size == copied.length()) {
+                channel.close();
+                return null;
+            }
+            return new Capture(file, name, channel, size, attributes.lastModifiedTime(), rewritten);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Copies a captured append-only file up to its captured length: only the appended bytes
+     * if the file is the one copied before, all of it if it was rewritten.
+     */
+    private static void copyCaptured(Capture capture, Copied copied, Path data, Map<String, FileState> files,
+                                     Set<String> linked) throws IOException {
+        Path copy = data.resolve(capture.name());
+        MessageDigest digest;
+        long position;
+        StandardOpenOption mode;
+        if (capture.rewritten()) {
+            Files.createDirectories(copy.getParent());
+            Files.deleteIfExists(copy);
+            linked.remove(capture.name());
+            digest = sha256();
+            position = 0;
+            mode = StandardOpenOption.CREATE_NEW;
+        } else {
+            digest = copied.digest();
+            position = copied.length();
+            mode = StandardOpenOption.APPEND;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        try (FileChannel out = FileChannel.open(copy, StandardOpenOption.WRITE, mode)) {
+            while (position < capture.size()) {
+                buffer.clear().limit((int) Math.min(buffer.capacity(), capture.size() - position));
+                int n = capture.channel().read(buffer, position);
+                if (n < 0) throw new IOException("Unexpected end of " + capture.file());
+                buffer.flip();
+                digest.update(buffer.duplicate());
+                while (buffer.hasRemaining()) out.write(buffer);
+                position += n;
+            }
+        }
+        Files.setLastModifiedTime(copy, capture.modified());
+        files.put(capture.name(), new FileState(capture.size(), capture.modified().toMillis(),
+                HexFormat.of().formatHex(digest.digest())));
+    }
+
+    /**
+     * @return true if the file still has the size and time it had when it was copied, and that
+     *         time is far enough before the copy started that a write during it would have changed it
+     */
+    private static boolean unchanged(Path file, FileState copied, Instant started) throws IOException {
+        if (copied == null) return false;
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            return attributes.size() == copied.size() && attributes.lastModifiedTime().toMillis() == copied.modified()
+                    && copied.modified() < started.toEpochMilli() - MTIME_GRANULARITY_MILLIS;
+        } catch (NoSuchFileException e) {
+            return false;
+        }
+    }
+
+    private static void remove(String name, Path data, Map<String, FileState> files, Set<String> linked)
+            throws IOException {
+        files.remove(name);
+        linked.remove(name);
+        Files.deleteIfExists(data.resolve(name));
+    }
+
+    private List<Path> sources() throws IOException {
+        try (Stream<Path> walk = Files.walk(baseDir)) {
+            return walk.filter(file -> Files.isRegularFile(file) && included(file)).toList();
+        }
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    private static MessageDigest clone(MessageDigest digest) {
+        try {
+            return (MessageDigest) digest.clone();
+        } catch (CloneNotSupportedException e) {
+            throw new IllegalStateException("SHA-256 state cannot be copied", e);
+        }
+    }
+
+    /**
+     * Takes the write lock. Backs off between attempts instead of queueing indefinitely: a
+     * thread holding the shared side (e.g. a transaction calling flush()) may be waiting for a
+     * background writer that itself needs the shared side, which a queued exclusive waiter blocks.
+     */
+    private void lockWrites() throws InterruptedIOException {
+        try {
+            while (!writeLock.tryLock(LOCK_ATTEMPT_MILLIS, TimeUnit.MILLISECONDS)) {
+                Thread.sleep(LOCK_BACKOFF_MILLIS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for writes to pause");
+        }
+    }
+
+    /**
+     * Skips the write-ahead log, which only matters for the running handler, temp files of
+     * atomic writes and log compactions that are not committed yet, and query indexes,
+     * which are rebuilt from the data when missing.
+     */
+    private boolean included(Path file) {
+        if (file.startsWith(baseDir.resolve(".wal"))) return false;
+        String name = file.getFileName().toString();
+        if (name.startsWith(".") && name.endsWith(".tmp")) return false;
+        return !name.endsWith(".compact") && !name.endsWith(".idx");
+    }
+
+    private String relativeName(Path file) {
+        return baseDir.relativize(file).toString().replace(File.separatorChar, '/');
+    }
+
+    /**
+     * @return the newest complete snapshot of this data directory next to the target, or null
+     */
+    private Manifest findPrevious(Path directory) {
+        Path parent = directory.getParent();
+        if (parent == null || !Files.isDirectory(parent)) return null;
+        Manifest newest = null;
+        try (Stream<Path> siblings = Files.list(parent)) {
+            for (Path sibling : siblings.toList()) {
+                if (sibling.equals(directory)) continue;
+                Manifest manifest = readManifest(sibling);
+                if (manifest != null && (newest == null || manifest.created().isAfter(newest.created()))) {
+                    newest = manifest;
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to look for previous snapshots in " + parent, e);
+        }
+        return newest;
+    }
+
+    private Manifest readManifest(Path directory) {
+        Path file = directory.resolve(MANIFEST);
+        if (!Files.isRegularFile(file)) return null;
+        try {
+            JsonNode root = mapper.readTree(file.toFile());
+            if (!baseDir.toString().equals(root.path("source").asText())) return null;
+            Map<String, FileState> files = new HashMap<>();
+            root.path("files").fields().forEachRemaining(e -> files.put(e.getKey(),
+                    new FileState(e.getValue().path("size").asLong(), e.getValue().path("modified").asLong(),
+                            e.getValue().path("sha256").textValue())));
+            return new Manifest(directory, Instant.parse(root.path("created").asText()), files);
+        } catch (IOException | RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Ignoring unreadable snapshot manifest " + file, e);
+            return null;
+        }
+    }
+
+    private void writeManifest(Path directory, Manifest previous, Instant created, Map<String, FileState> files)
+            throws IOException {
+        ObjectNode root = mapper.createObjectNode();
+        root.put("source", baseDir.toString());
+        root.put("created", created.toString());
+        root.put("previous", previous == null ? null : previous.directory().getFileName().toString());
+        ObjectNode entries = root.putObject("files");
+        files.forEach((name, state) -> entries.putObject(name)
+                .put("size", state.size())
+                .put("modified", state.modified())
+                .put("sha256", state.sha256()));
+        Path temp = directory.resolve(MANIFEST + ".tmp");
+        mapper.writerWithDefaultPrettyPrinter().writeValue(temp.toFile(), root);
+        Files.move(temp, directory.resolve(MANIFEST), StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static boolean isEmptyDirectory(Path directory) throws IOException {
+        if (!Files.isDirectory(directory)) return false;
+        try (Stream<Path> entries = Files.list(directory)) {
+            return entries.findAny().isEmpty();
+        }
+    }
+}
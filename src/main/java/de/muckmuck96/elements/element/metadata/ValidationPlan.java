@@ -0,0 +1,94 @@
+package de.muckmuck96.elements.element.metadata;
+
+import de.muckmuck96.elements.element.metadata.validator.MetadataValidationException;
+import de.muckmuck96.elements.element.metadata.validator.MetadataValidator;
+import de.muckmuck96.elements.element.metadata.validator.MetadataValidators;
+import de.muckmuck96.elements.element.metadata.validator.MetadataValueValidator;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Precompiled {@link MetadataValidator} checks of a metadata class.
+ * <p>
+ * Built once when the class is registered: annotated fields are resolved to
+ * method handle getters and shared validator instances, so validating a loaded
+ * object does no reflection lookups or validator instantiation.
+ * </p>
+ */
+final class ValidationPlan {
+    private static final ValidationPlan EMPTY = new ValidationPlan(Object.class, List.of());
+    private static final MethodType GETTER_TYPE = MethodType.methodType(Object.class, Object.class);
+
+    private record FieldCheck(Field field, MethodHandle getter, MetadataValueValidator<Object> validator,
+                              MetadataValidator settings) {}
+
+    private final Class<?> clazz;
+    private final List<FieldCheck> checks;
+
+    private ValidationPlan(Class<?> clazz, List<FieldCheck> checks) {
+        this.clazz = clazz;
+        this.checks = checks;
+    }
+
+    static ValidationPlan compile(Class<?> clazz) {
+        List<FieldCheck> checks = new ArrayList<>();
+        for (Field field : clazz.getDeclaredFields()) {
+            MetadataValidator ann = field.getAnnotation(MetadataValidator.class);
+            if (ann == null) continue;
+
+            MethodHandle getter;
+            try {
+                field.setAccessible(true);
+                getter = MethodHandles.lookup().unreflectGetter(field);
+            } catch (IllegalAccessException | RuntimeException e) {
+                throw new RuntimeException("Failed to access field '" + field.getName()
+                        + "' on " + clazz.getName(), e);
+            }
+            if (Modifier.isStatic(field.getModifiers())) {
+                getter = MethodHandles.dropArguments(getter.asType(MethodType.methodType(Object.class)), 0, Object.class);
+            } else {
+                getter = getter.asType(GETTER_TYPE);
+            }
+
+            MetadataValueValidator<Object> validator;
+            try {
+                validator = MetadataValidators.get(ann.value());
+            } catch (IllegalStateException e) {
+                throw new RuntimeException("Could not instantiate validator "
+                        + ann.value().getName() + " for field '" + field.getName()
+                        + "' on " + clazz.getName(), e);
+            }
+            checks.add(new FieldCheck(field, getter, validator, ann));
+        }
+        return checks.isEmpty() ? EMPTY : new ValidationPlan(clazz, List.copyOf(checks));
+    }
+
+    void validate(Object obj) {
+        if (obj == null) return;
+        for (FieldCheck check : checks) {
+            Object value;
+            try {
+                value = (Object) check.getter().invokeExact(obj);
+            } catch (Throwable e) {
+                throw new RuntimeException("Failed to access field '" + check.field().getName()
+                        + "' on " + clazz.getName(), e);
+            }
+
+            try {
+                check.validator().validate(value, check.field(), clazz, check.settings());
+            } catch (MetadataValidationException ex) {
+                throw new RuntimeException(
+                        "Validation failed for field '" + check.field().getName()
+                                + "' of " + clazz.getSimpleName() + ": " + ex.getMessage(),
+                        ex
+                );
+            }
+        }
+    }
+}
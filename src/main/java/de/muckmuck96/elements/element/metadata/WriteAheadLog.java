@@ -0,0 +1,429 @@
+package de.muckmuck96.elements.element.metadata;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * Sequential write-ahead log of {@link DataHandler} mutations.
+ * <p>
+ * Callers only encode a record and queue it; a single writer thread appends everything
+ * queued since its last round in one write and one fsync (group commit). Every record
+ * has a sequence number in queue order. A checkpoint names the sequence up to which all
+ * mutations are known to be saved, so after a crash only newer records are replayed.
+ * The log is split into segments named by their first sequence number; a new segment is
+ * started after every checkpoint, and segments that lie entirely before the last
+ * checkpoint are deleted once they are older than the retention window. Until then they
+ * can be searched for the state of an entry at an earlier point in time.
+ * </p>
+ * <p>
+ * Appends do not wait for the disk. If a write fails, the records of that round are lost
+ * while their callers already returned, so the log stops accepting mutations: every
+ * {@link #append} throws until a checkpoint covering the lost records has been written
+ * to a fresh segment, i.e. until everything has been saved again.
+ * </p>
+ * Record layout: {@code crc(4) length(4) sequence(8) timestamp(8) type(1) classLength(2) class
+ * idLength(2) id value}, where the CRC covers everything after the length. The value of a
+ * checkpoint is the sequence number it names.
+ */
+final class WriteAheadLog implements Closeable {
+    private static final Logger LOGGER = Logger.getLogger(WriteAheadLog.class.getName());
+    private static final String EXTENSION = ".wal";
+    private static final int HEADER_SIZE = 8;
+    private static final int MAX_RECORD_SIZE = 256 * 1024 * 1024;
+    private static final long MAX_SEGMENT_SIZE = 64L * 1024L * 1024L;
+    private static final byte MUTATION = 0;
+    private static final byte CHECKPOINT = 1;
+
+    private record Pending(long sequence, ByteBuffer record, CompletableFuture<Void> synced) {}
+
+    /** Queued by {@link #close()} after everything else; the writer stops once it gets it. */
+    private static final Pending STOP = new Pending(-1L, null, null);
+
+    private record Mutation(long sequence, long timestamp, byte[] value) {}
+
+    private interface Visitor {
+        void accept(long sequence, long timestamp, byte type, String className, String id, byte[] value);
+    }
+
+    private final Path directory;
+    private final long retentionMillis;
+    private final BlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+    private final Map<String, Map<String, byte[]>> recovered;
+    private final Thread writerThread;
+    private final Object sequenceLock = new Object();
+    private long nextSequence;
+    private volatile boolean running = true;
+    private volatile IOException failure; // set while records may have been lost
+
+    // writer thread only
+    private FileChannel channel;
+    private Path segment;
+    private long segmentSize;
+    private long checkpoint;
+    private long lostSequence = -1L; // highest sequence of a record that could not be written
+
+    WriteAheadLog(Path directory, Duration retention) throws IOException {
+        this.directory = directory;
+        this.retentionMillis = retention.toMillis();
+        Files.createDirectories(directory);
+
+        Map<String, Map<String, Mutation>> latest = new HashMap<>();
+        long[] state = new long[2]; // max sequence + 1, last checkpoint
+        List<Path> segments = segments();
+        for (int i = 0; i < segments.size(); i++) {
+            Path file = segments.get(i);
+            long valid = scan(file, (sequence, timestamp, type, className, id, value) -> {
+                state[0] = Math.max(state[0], sequence + 1);
+                if (type == CHECKPOINT) {
+                    long mark = ByteBuffer.wrap(value).getLong();
+                    state[1] = Math.max(state[1], mark);
+                    // everything before the mark is in the saved files, no need to keep it in memory
+                    latest.values().forEach(ids -> ids.values().removeIf(m -> m.sequence() < mark));
+                } else {
+                    latest.computeIfAbsent(className, k -> new HashMap<>())
+                            .put(id, new Mutation(sequence, timestamp, value));
+                }
+            });
+            if (i == segments.size() - 1 && valid < Files.size(file)) {
+                LOGGER.log(Level.WARNING, "Truncating incomplete write-ahead log records of " + file);
+                try (FileChannel truncate = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                    truncate.truncate(valid);
+                }
+            }
+        }
+        this.nextSequence = state[0];
+        this.checkpoint = state[1];
+
+        Map<String, Map<String, byte[]>> pending = new HashMap<>();
+        latest.forEach((className, ids) -> ids.forEach((id, mutation) -> {
+            if (mutation.sequence() >= checkpoint) {
+                pending.computeIfAbsent(className, k -> new HashMap<>()).put(id, mutation.value());
+            }
+        }));
+        this.recovered = pending;
+
+        openSegment(segments.isEmpty() ? directory.resolve(segmentName(nextSequence)) : segments.get(segments.size() - 1));
+        this.writerThread = new Thread(this::run, "Elements-DataHandler-WAL");
+        this.writerThread.setDaemon(true);
+        this.writerThread.start();
+    }
+
+    /**
+     * @return the latest value of every entry mutated after the last checkpoint, by class name and id
+     */
+    Map<String, Map<String, byte[]>> recovered() {
+        return recovered;
+    }
+
+    /**
+     * @return the sequence number the next record will get; pass it to {@link #checkpoint}
+     * once everything mutated before this call has been saved
+     */
+    long nextSequence() {
+        synchronized (sequenceLock) {
+            return nextSequence;
+        }
+    }
+
+    /**
+     * Queues a mutation. It is on disk after the writer's next round, usually within one fsync.
+     *
+     * @throws IllegalStateException if an earlier write failed and nothing has been saved since
+     */
+    void append(String className, String id, byte[] value) {
+        IOException failed = failure;
+        if (failed != null) {
+            throw new IllegalStateException("The write-ahead log could not be written; changes are not logged"
+                    + " until everything has been saved again", failed);
+        }
+        enqueue(MUTATION, className, id, value);
+    }
+
+    /**
+     * Records that all mutations with a lower sequence number than {@code mark} are saved.
+     */
+    void checkpoint(long mark) {
+        enqueue(CHECKPOINT, "", "", ByteBuffer.allocate(8).putLong(mark).array());
+    }
+
+    /**
+     * Waits until everything queued so far is on disk.
+     *
+     * @throws java.util.concurrent.CompletionException if it could not be written
+     */
+    void sync() {
+        if (!running) return;
+        CompletableFuture<Void> synced = new CompletableFuture<>();
+        queue.add(new Pending(-1L, null, synced));
+        synced.join();
+    }
+
+    /**
+     * Finds the value an entry had at a point in time.
+     *
+     * @return the value of the last mutation at or before {@code atMillis}, or null if there
+     * is none within the retention window
+     */
+    byte[] find(String className, String id, long atMillis) throws IOException {
+        if (failure == null) sync();
+        byte[][] found = new byte[1][];
+        for (Path file : segments()) {
+            try {
+                scan(file, (sequence, timestamp, type, recordClass, recordId, value) -> {
+                    if (type == MUTATION && timestamp <= atMillis && recordId.equals(id) && recordClass.equals(className)) {
+                        found[0] = value;
+                    }
+                });
+            } catch (NoSuchFileException e) {
+                // pruned meanwhile
+            }
+        }
+        return found[0];
+    }
+
+    /**
+     * Writes everything queued so far and stops the writer. It is stopped by a record queued
+     * behind the others rather than an interrupt, which would abort an fsync in progress.
+     */
+    @Override
+    public void close() throws IOException {
+        if (!running) return;
+        running = false;
+        queue.add(STOP);
+        try {
+            writerThread.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        channel.close();
+        IOException failed = failure;
+        if (failed != null) {
+            throw new IOException("The write-ahead log lost records that were never saved", failed);
+        }
+    }
+
+    private void enqueue(byte type, String className, String id, byte[] value) {
+        byte[] classBytes = className.getBytes(StandardCharsets.UTF_8);
+        byte[] idBytes = id.getBytes(StandardCharsets.UTF_8);
+        int length = 8 + 8 + 1 + 2 + classBytes.length + 2 + idBytes.length + value.length;
+        ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + length);
+        record.putInt(0).putInt(length).putLong(0L).putLong(System.currentTimeMillis()).put(type)
+                .putShort((short) classBytes.length).put(classBytes)
+                .putShort((short) idBytes.length).put(idBytes)
+                .put(value);
+        record.flip();
+        synchronized (sequenceLock) {
+            long sequence = nextSequence++;
+            record.putLong(HEADER_SIZE, sequence);
+            queue.add(new Pending(sequence, record, null));
+        }
+    }
+
+    private void run() {
+        List<Pending> batch = new ArrayList<>();
+        boolean stopped = false;
+        while (!stopped) {
+            try {
+                batch.add(queue.take());
+                queue.drainTo(batch);
+            } catch (InterruptedException e) {
+                // only close() stops the writer
+                continue;
+            }
+            stopped = batch.removeIf(pending -> pending == STOP);
+            writeBatch(batch);
+            batch.clear();
+        }
+        // records queued concurrently with close() are not written
+        for (Pending pending : queue) {
+            if (pending.synced() != null) pending.synced().completeExceptionally(new IOException("Write-ahead log closed"));
+        }
+    }
+
+    private void writeBatch(List<Pending> batch) {
+        long lastSequence = -1L;
+        long mark = -1L;
+        long firstSequence = -1L;
+        try {
+            List<ByteBuffer> records = new ArrayList<>(batch.size());
+            for (Pending pending : batch) {
+                if (pending.record() == null) continue;
+                ByteBuffer record = pending.record();
+                boolean isCheckpoint = record.get(HEADER_SIZE + 16) == CHECKPOINT;
+                if (failure != null && !isCheckpoint) {
+                    // queued before the failure was noticed; lost like the failed ones
+                    lostSequence = Math.max(lostSequence, pending.sequence());
+                    continue;
+                }
+                if (firstSequence < 0) firstSequence = pending.sequence();
+                CRC32C crc = new CRC32C();
+                crc.update(record.array(), HEADER_SIZE, record.limit() - HEADER_SIZE);
+                record.putInt(0, (int) crc.getValue());
+                records.add(record);
+                lastSequence = pending.sequence();
+                if (isCheckpoint) {
+                    mark = Math.max(mark, record.getLong(record.limit() - 8));
+                }
+            }
+            if (failure != null && !records.isEmpty()) {
+                // the old segment may end in a torn record, which hides everything after it
+                openSegment(directory.resolve(segmentName(firstSequence)));
+            }
+            if (!records.isEmpty()) {
+                ByteBuffer[] buffers = records.toArray(ByteBuffer[]::new);
+                long remaining = 0;
+                for (ByteBuffer buffer : buffers) remaining += buffer.remaining();
+                while (remaining > 0) {
+                    remaining -= channel.write(buffers);
+                }
+                channel.force(false);
+                segmentSize = channel.size();
+            }
+        } catch (IOException | RuntimeException e) {
+            LOGGER.log(Level.SEVERE, "Failed to write the write-ahead log " + segment
+                    + "; changes are not logged until everything has been saved again", e);
+            for (Pending pending : batch) {
+                if (pending.record() != null) lostSequence = Math.max(lostSequence, pending.sequence());
+                if (pending.synced() != null) pending.synced().completeExceptionally(e);
+            }
+            failure = e instanceof IOException io ? io : new IOException(e);
+            return;
+        }
+        if (failure != null && mark > lostSequence) {
+            LOGGER.info("Write-ahead log " + segment + " is written again after a save");
+            failure = null;
+        }
+        for (Pending pending : batch) {
+            if (pending.synced() != null) {
+                if (failure == null) pending.synced().complete(null);
+                else pending.synced().completeExceptionally(failure);
+            }
+        }
+
+        try {
+            if (mark >= 0) {
+                checkpoint = Math.max(checkpoint, mark);
+                openSegment(directory.resolve(segmentName(lastSequence + 1)));
+                prune();
+            } else if (segmentSize >= MAX_SEGMENT_SIZE) {
+                openSegment(directory.resolve(segmentName(lastSequence + 1)));
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to roll the write-ahead log " + segment, e);
+        }
+    }
+
+    /**
+     * Deletes segments whose records all precede the last checkpoint and are older than the
+     * retention window. A segment's records are below the first sequence of the next one.
+     */
+    private void prune() throws IOException {
+        List<Path> segments = segments();
+        long cutoff = System.currentTimeMillis() - retentionMillis;
+        for (int i = 0; i + 1 < segments.size(); i++) {
+            Path file = segments.get(i);
+            if (file.equals(segment)) break;
+            if (firstSequence(segments.get(i + 1)) > checkpoint) break;
+            if (Files.getLastModifiedTime(file).toMillis() >= cutoff) break;
+            Files.deleteIfExists(file);
+        }
+    }
+
+    private void openSegment(Path file) throws IOException {
+        if (file.equals(segment)) return;
+        FileChannel previous = channel;
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        segment = file;
+        segmentSize = channel.size();
+        if (previous != null) previous.close();
+    }
+
+    private List<Path> segments() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(f -> f.getFileName().toString().endsWith(EXTENSION)).sorted().toList();
+        }
+    }
+
+    private static String segmentName(long firstSequence) {
+        return String.format("%016x", firstSequence) + EXTENSION;
+    }
+
+    private static long firstSequence(Path segment) {
+        String name = segment.getFileName().toString();
+        return Long.parseUnsignedLong(name.substring(0, name.length() - EXTENSION.length()), 16);
+    }
+
+    /**
+     * Reads all valid records of a segment.
+     *
+     * @return the length of the valid prefix, shorter than the file if its tail is torn
+     */
+    private static long scan(Path file, Visitor visitor) throws IOException {
+        long valid = 0;
+        try (InputStream raw = Files.newInputStream(file);
+             DataInputStream in = new DataInputStream(new BufferedInputStream(raw, 64 * 1024))) {
+            while (true) {
+                int crc;
+                int length;
+                try {
+                    crc = in.readInt();
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                if (length < 21 || length > MAX_RECORD_SIZE) break;
+                byte[] body = new byte[length];
+                try {
+                    in.readFully(body);
+                } catch (EOFException e) {
+                    break;
+                }
+                CRC32C check = new CRC32C();
+                check.update(body);
+                if ((int) check.getValue() != crc) break;
+
+                ByteBuffer buffer = ByteBuffer.wrap(body);
+                long sequence = buffer.getLong();
+                long timestamp = buffer.getLong();
+                byte type = buffer.get();
+                String className = readString(buffer);
+                String id = readString(buffer);
+                byte[] value = new byte[buffer.remaining()];
+                buffer.get(value);
+                visitor.accept(sequence, timestamp, type, className, id, value);
+                valid += HEADER_SIZE + length;
+            }
+        }
+        return valid;
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[Short.toUnsignedInt(buffer.getShort())];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,215 @@
+package de.muckmuck96.elements.element.metadata;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Bounded write-behind queue used by {@link DataHandler}.
+ * <p>
+ * Pending writes are keyed by their target file, so repeated writes to the same
+ * file are coalesced into a single write of the latest value. A dedicated daemon
+ * thread drains the queue in batches. When the queue is full, producers block
+ * until the writer has made room (backpressure).
+ * </p>
+ */
+final class WriteBehindQueue {
+    private static final Logger LOGGER = Logger.getLogger(WriteBehindQueue.class.getName());
+
+    private record Pending(long sequence, Runnable write) {}
+
+    private final int capacity;
+    private final int batchSize;
+    private final long lingerMillis;
+    private final Consumer<List<Runnable>> batchWriter;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private final Condition drained = lock.newCondition();
+    private final LinkedHashMap<Path, Pending> pending = new LinkedHashMap<>();
+    private final Thread writerThread;
+
+    private long enqueued;  // sequence of the latest write
+    private long completed; // every write up to this sequence has been executed
+    private boolean flushRequested;
+    private RuntimeException failure; // batches failed since the last flush
+    private volatile boolean running = true;
+
+    /**
+     * @param capacity     maximum number of distinct pending files before producers block
+     * @param batchSize    maximum number of writes handed to {@code batchWriter} at once
+     * @param lingerMillis how long the writer waits for more writes to coalesce
+     * @param batchWriter  executes one batch of writes on the writer thread
+     */
+    WriteBehindQueue(int capacity, int batchSize, long lingerMillis, Consumer<List<Runnable>> batchWriter) {
+        if (capacity <= 0 || batchSize <= 0) {
+            throw new IllegalArgumentException("capacity and batchSize must be positive");
+        }
+        this.capacity = capacity;
+        this.batchSize = batchSize;
+        this.lingerMillis = Math.max(0L, lingerMillis);
+        this.batchWriter = batchWriter;
+        this.writerThread = new Thread(this::runWriter, "Elements-DataHandler-Writer");
+        this.writerThread.setDaemon(true);
+        this.writerThread.start();
+    }
+
+    /**
+     * Enqueues a write for the given file, replacing any pending write for it.
+     * Blocks while the queue is full.
+     */
+    void enqueue(Path file, Runnable write) {
+        lock.lock();
+        try {
+            if (!running) {
+                throw new IllegalStateException("Write-behind queue has been shut down.");
+            }
+            if (pending.remove(file) == null) {
+                while (pending.size() >= capacity && running) {
+                    flushRequested = true;
+                    notEmpty.signal();
+                    notFull.awaitUninterruptibly();
+                }
+                if (!running) {
+                    throw new IllegalStateException("Write-behind queue has been shut down.");
+                }
+            }
+            // re-inserted at the end, so pending stays ordered by sequence
+            pending.put(file, new Pending(++enqueued, write));
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Wakes up the writer and waits until every write enqueued before this call has been
+     * executed (or replaced by a later write to the same file that has been executed).
+     * Writes enqueued meanwhile do not prolong the wait.
+     *
+     * @throws RuntimeException if a batch failed since the last flush; its writes are lost
+     */
+    void flush() {
+        if (Thread.currentThread() == writerThread) return;
+        RuntimeException failed;
+        lock.lock();
+        try {
+            long target = enqueued;
+            while (completed < target) {
+                flushRequested = true;
+                notEmpty.signal();
+                drained.awaitUninterruptibly();
+            }
+            failed = failure;
+            failure = null;
+        } finally {
+            lock.unlock();
+        }
+        if (failed != null) {
+            throw new RuntimeException("Write-behind writes failed", failed);
+        }
+    }
+
+    int pendingCount() {
+        lock.lock();
+        try {
+            return pending.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Flushes all pending writes and stops the writer thread.
+     */
+    void shutdown() {
+        try {
+            flush();
+        } finally {
+            lock.lock();
+            try {
+                running = false;
+                notEmpty.signalAll();
+                notFull.signalAll();
+            } finally {
+                lock.unlock();
+            }
+            try {
+                writerThread.join(TimeUnit.SECONDS.toMillis(10));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void runWriter() {
+        while (true) {
+            List<Runnable> batch;
+            long last = 0;
+            lock.lock();
+            try {
+                while (pending.isEmpty() && running) {
+                    notEmpty.awaitUninterruptibly();
+                }
+                if (pending.isEmpty()) {
+                    return;
+                }
+                if (lingerMillis > 0 && !flushRequested && running) {
+                    // Give repeated writes to the same file a chance to coalesce
+                    long remaining = TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+                    while (remaining > 0 && !flushRequested && running) {
+                        try {
+                            remaining = notEmpty.awaitNanos(remaining);
+                        } catch (InterruptedException ignored) {
+                            // the writer thread is only stopped through shutdown()
+                        }
+                    }
+                }
+                batch = new ArrayList<>(Math.min(batchSize, pending.size()));
+                Iterator<Map.Entry<Path, Pending>> it = pending.entrySet().iterator();
+                while (it.hasNext() && batch.size() < batchSize) {
+                    Pending next = it.next().getValue();
+                    batch.add(next.write());
+                    last = next.sequence();
+                    it.remove();
+                }
+                if (pending.isEmpty()) {
+                    flushRequested = false;
+                }
+                notFull.signalAll();
+            } finally {
+                lock.unlock();
+            }
+
+            RuntimeException failed = null;
+            try {
+                batchWriter.accept(batch);
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.SEVERE, "Write-behind batch failed", e);
+                failed = e;
+            }
+
+            lock.lock();
+            try {
+                if (failed != null) {
+                    if (failure == null) failure = failed;
+                    else failure.addSuppressed(failed);
+                }
+                completed = Math.max(completed, last);
+                drained.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
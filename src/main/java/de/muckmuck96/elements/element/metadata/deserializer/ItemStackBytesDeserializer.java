@@ -0,0 +1,30 @@
+package de.muckmuck96.elements.element.metadata.deserializer;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.JsonDeserializer;
+import org.bukkit.inventory.ItemStack;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Reads an {@link ItemStack} written by {@code ItemStackBytesSerializer}.
+ * <p>
+ * Values in the default map format are still accepted, so a field can be switched
+ * to the binary format without converting existing files.
+ * </p>
+ */
+public class ItemStackBytesDeserializer extends JsonDeserializer<ItemStack> {
+    @Override
+    public ItemStack deserialize(JsonParser p, DeserializationContext deserializationContext) throws IOException {
+        if (p.currentToken() == JsonToken.START_OBJECT) {
+            @SuppressWarnings("unchecked")
+            Map<String, Object> data = p.readValueAs(Map.class);
+            return ItemStack.deserialize(data);
+        }
+        byte[] bytes = p.getBinaryValue();
+        return bytes.length == 0 ? ItemStack.empty() : ItemStack.deserializeBytes(bytes);
+    }
+}
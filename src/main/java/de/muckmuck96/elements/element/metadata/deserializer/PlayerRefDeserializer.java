@@ -0,0 +1,35 @@
+package de.muckmuck96.elements.element.metadata.deserializer;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.JsonDeserializer;
+import com.fasterxml.jackson.databind.JsonNode;
+import de.muckmuck96.elements.element.metadata.PlayerRef;
+
+import java.io.IOException;
+import java.util.UUID;
+
+/**
+ * Reads a {@link PlayerRef} without looking up the player, so it is safe on any thread.
+ * Accepts the {@code {"uuid": ..., "name": ...}} object as well as a plain UUID string.
+ */
+public class PlayerRefDeserializer extends JsonDeserializer<PlayerRef> {
+    @Override
+    public PlayerRef deserialize(JsonParser p, DeserializationContext deserializationContext) throws IOException {
+        JsonNode node = p.getCodec().readTree(p);
+        JsonNode uuidNode = node.isObject() ? node.path("uuid") : node;
+        if (uuidNode.isMissingNode() || uuidNode.isNull()) {
+            return null;
+        }
+        String uuid = uuidNode.asText();
+        if (uuid.isEmpty()) {
+            return null;
+        }
+        try {
+            JsonNode nameNode = node.path("name");
+            return PlayerRef.of(UUID.fromString(uuid), nameNode.isTextual() ? nameNode.asText() : null);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+}
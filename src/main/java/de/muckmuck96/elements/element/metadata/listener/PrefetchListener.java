@@ -0,0 +1,38 @@
+package de.muckmuck96.elements.element.metadata.listener;
+
+import de.muckmuck96.elements.element.metadata.DataHandler;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.player.AsyncPlayerPreLoginEvent;
+import org.bukkit.plugin.Plugin;
+
+import java.util.List;
+import java.util.logging.Level;
+
+/**
+ * Warms the DataHandler cache for joining players while they are still on the async
+ * pre-login thread, so the first access on the main thread is a cache hit.
+ */
+public class PrefetchListener implements Listener {
+    private final Plugin plugin;
+    private final DataHandler dataHandler;
+    private final Class<?>[] classes;
+
+    public PrefetchListener(Plugin plugin, DataHandler dataHandler, List<Class<?>> classes) {
+        this.plugin = plugin;
+        this.dataHandler = dataHandler;
+        this.classes = classes.toArray(new Class<?>[0]);
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPreLogin(AsyncPlayerPreLoginEvent e) {
+        if (e.getLoginResult() != AsyncPlayerPreLoginEvent.Result.ALLOWED) return;
+        try {
+            // Blocking is fine here: the event runs on its own async thread
+            dataHandler.prefetch(e.getUniqueId(), classes).join();
+        } catch (RuntimeException ex) {
+            plugin.getLogger().log(Level.WARNING, "Failed to prefetch metadata for " + e.getUniqueId(), ex);
+        }
+    }
+}
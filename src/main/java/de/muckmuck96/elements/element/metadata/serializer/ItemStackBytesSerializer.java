@@ -0,0 +1,34 @@
+package de.muckmuck96.elements.element.metadata.serializer;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonSerializer;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import org.bukkit.inventory.ItemStack;
+
+import java.io.IOException;
+
+/**
+ * Writes an {@link ItemStack} as Paper's binary item format instead of its property map.
+ * <p>
+ * The bytes are written as a single binary value, which is base64 in JSON/YAML and raw
+ * bytes in Smile, so no intermediate map is allocated. Empty items are written as an
+ * empty value. Select it per field, together with {@code ItemStackBytesDeserializer}:
+ * </p>
+ * <pre>{@code
+ * @JsonSerialize(using = ItemStackBytesSerializer.class)
+ * @JsonDeserialize(using = ItemStackBytesDeserializer.class)
+ * private ItemStack item;
+ *
+ * @JsonSerialize(contentUsing = ItemStackBytesSerializer.class)
+ * @JsonDeserialize(contentUsing = ItemStackBytesDeserializer.class)
+ * private List<ItemStack> backup;
+ * }</pre>
+ */
+public class ItemStackBytesSerializer extends JsonSerializer<ItemStack> {
+    private static final byte[] EMPTY = new byte[0];
+
+    @Override
+    public void serialize(ItemStack itemStack, JsonGenerator gen, SerializerProvider serializerProvider) throws IOException {
+        gen.writeBinary(itemStack.isEmpty() ? EMPTY : itemStack.serializeAsBytes());
+    }
+}
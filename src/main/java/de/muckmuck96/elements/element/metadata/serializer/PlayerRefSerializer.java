@@ -0,0 +1,20 @@
+package de.muckmuck96.elements.element.metadata.serializer;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonSerializer;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import de.muckmuck96.elements.element.metadata.PlayerRef;
+
+import java.io.IOException;
+
+public class PlayerRefSerializer extends JsonSerializer<PlayerRef> {
+    @Override
+    public void serialize(PlayerRef ref, JsonGenerator gen, SerializerProvider serializerProvider) throws IOException {
+        gen.writeStartObject();
+        gen.writeStringField("uuid", ref.getUniqueId().toString());
+        if (ref.getName() != null) {
+            gen.writeStringField("name", ref.getName());
+        }
+        gen.writeEndObject();
+    }
+}
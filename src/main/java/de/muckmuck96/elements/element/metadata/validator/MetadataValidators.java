@@ -0,0 +1,30 @@
+package de.muckmuck96.elements.element.metadata.validator;
+
+/**
+ * Shared validator instances. Validators are stateless, so one instance per
+ * validator class is created on first use and reused for every field and load.
+ */
+public final class MetadataValidators {
+    private static final ClassValue<MetadataValueValidator<?>> INSTANCES = new ClassValue<>() {
+        @Override
+        protected MetadataValueValidator<?> computeValue(Class<?> type) {
+            try {
+                return (MetadataValueValidator<?>) type.getDeclaredConstructor().newInstance();
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException("Could not instantiate validator " + type.getName(), e);
+            }
+        }
+    };
+
+    private MetadataValidators() {}
+
+    /**
+     * @param type the validator class, which needs a no-arg constructor
+     * @return the shared instance of this validator
+     * @throws IllegalStateException if the validator cannot be instantiated
+     */
+    @SuppressWarnings("unchecked")
+    public static MetadataValueValidator<Object> get(Class<? extends MetadataValueValidator<?>> type) {
+        return (MetadataValueValidator<Object>) INSTANCES.get(type);
+    }
+}
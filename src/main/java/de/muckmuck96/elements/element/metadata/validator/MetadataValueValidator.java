@@ -2,6 +2,13 @@ package de.muckmuck96.elements.element.metadata.validator;
 
 import java.lang.reflect.Field;
 
+/**
+ * Validates a single field after a metadata object has been loaded.
+ * <p>
+ * Implementations need a no-arg constructor. A single instance per class is shared
+ * across all fields and threads, so implementations must be stateless.
+ * </p>
+ */
 public interface MetadataValueValidator<T> {
     /**
      * @param value      the value of the field after loading
@@ -2,6 +2,7 @@ package de.muckmuck96.elements.element.metadata.validator.checks.generic;
 
 import de.muckmuck96.elements.element.metadata.validator.MetadataValidationException;
 import de.muckmuck96.elements.element.metadata.validator.MetadataValidator;
+import de.muckmuck96.elements.element.metadata.validator.MetadataValidators;
 import de.muckmuck96.elements.element.metadata.validator.MetadataValueValidator;
 
 import java.lang.reflect.Field;
@@ -23,10 +24,10 @@ public class CompositeValidator implements MetadataValueValidator<Object> {
         }
 
         for (Class<? extends MetadataValueValidator<?>> delegateClass : delegates) {
-            MetadataValueValidator<?> delegate;
+            MetadataValueValidator<Object> typed;
             try {
-                delegate = delegateClass.getDeclaredConstructor().newInstance();
-            } catch (Exception e) {
+                typed = MetadataValidators.get(delegateClass);
+            } catch (IllegalStateException e) {
                 throw new MetadataValidationException(
                         "Failed to instantiate delegate validator "
                                 + delegateClass.getName() + " for field '"
@@ -35,9 +36,6 @@ public class CompositeValidator implements MetadataValueValidator<Object> {
                 );
             }
 
-            @SuppressWarnings("unchecked")
-            MetadataValueValidator<Object> typed = (MetadataValueValidator<Object>) delegate;
-
             // Reuse the same @MetadataValidator settings for all delegates
             typed.validate(value, field, ownerClass, settings);
         }
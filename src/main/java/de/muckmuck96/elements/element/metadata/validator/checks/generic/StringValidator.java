@@ -5,9 +5,12 @@ import de.muckmuck96.elements.element.metadata.validator.MetadataValidator;
 import de.muckmuck96.elements.element.metadata.validator.MetadataValueValidator;
 
 import java.lang.reflect.Field;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Pattern;
 
 public class StringValidator implements MetadataValueValidator<String> {
+    private static final Map<String, Pattern> PATTERNS = new ConcurrentHashMap<>();
 
     @Override
     public void validate(
@@ -40,7 +43,7 @@ public class StringValidator implements MetadataValueValidator<String> {
 
         String regex = settings.regex();
         if (!regex.isEmpty()) {
-            Pattern pattern = Pattern.compile(regex);
+            Pattern pattern = PATTERNS.computeIfAbsent(regex, Pattern::compile);
             if (!pattern.matcher(value).matches()) {
                 throw new MetadataValidationException(
                         "Field '" + fieldName + "' in " + ownerName
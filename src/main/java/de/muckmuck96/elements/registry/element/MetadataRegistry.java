@@ -1,10 +1,24 @@
 package de.muckmuck96.elements.registry.element;
 
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import de.muckmuck96.elements.element.metadata.CacheStats;
 import de.muckmuck96.elements.element.metadata.DataHandler;
+import de.muckmuck96.elements.element.metadata.MetadataSnapshot;
+import de.muckmuck96.elements.element.metadata.MetadataStore;
+import de.muckmuck96.elements.element.metadata.listener.PrefetchListener;
 import de.muckmuck96.elements.registry.ElementRegistry;
+import org.bukkit.Bukkit;
 import org.bukkit.plugin.Plugin;
 import org.bukkit.plugin.java.JavaPlugin;
 
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.UnaryOperator;
+
 /**
  * Registry for managing metadata persistence via DataHandler.
  * <p>
@@ -49,6 +63,34 @@ public class MetadataRegistry extends ElementRegistry {
         this.dataHandler = DataHandler.forPlugin((JavaPlugin) plugin, maxCacheSize, maxPatternCacheSize);
     }
 
+    /**
+     * Creates a MetadataRegistry that keeps all storages except configs in the given store.
+     *
+     * <pre>
+     * new MetadataRegistry(plugin, MetadataStore.embedded(plugin.getDataFolder().toPath().resolve("metadata.db")));
+     * </pre>
+     *
+     * @param plugin the plugin instance
+     * @param store  the storage backend, closed by {@link #close()}
+     */
+    public MetadataRegistry(Plugin plugin, MetadataStore store) {
+        this(plugin, DEFAULT_CACHE_SIZE, DEFAULT_PATTERN_CACHE_SIZE, store);
+    }
+
+    /**
+     * Creates a MetadataRegistry with custom cache sizes and storage backend.
+     *
+     * @param plugin              the plugin instance
+     * @param maxCacheSize        maximum number of cached singleton instances
+     * @param maxPatternCacheSize maximum number of cached instances per pattern type
+     * @param store               the storage backend, closed by {@link #close()}
+     */
+    public MetadataRegistry(Plugin plugin, int maxCacheSize, int maxPatternCacheSize, MetadataStore store) {
+        super(plugin);
+        this.plugin = plugin;
+        this.dataHandler = DataHandler.forPlugin((JavaPlugin) plugin, maxCacheSize, maxPatternCacheSize, store);
+    }
+
     /**
      * Gets the underlying DataHandler instance.
      *
@@ -128,6 +170,44 @@ public class MetadataRegistry extends ElementRegistry {
         dataHandler.set(clazz, uuid, instance);
     }
 
+    /**
+     * Atomically replaces a copy-on-write singleton metadata instance.
+     *
+     * @param clazz    the class annotated with @Metadata(copyOnWrite = true)
+     * @param operator receives a copy of the current instance and returns the new one
+     * @param <T>      the type of the metadata class
+     * @return the new instance
+     */
+    public <T> T update(Class<T> clazz, UnaryOperator<T> operator) {
+        return dataHandler.update(clazz, operator);
+    }
+
+    /**
+     * Atomically replaces a copy-on-write pattern-based metadata instance.
+     *
+     * @param clazz    the class annotated with @Metadata(copyOnWrite = true) (with {id} pattern)
+     * @param id       the unique identifier
+     * @param operator receives a copy of the current instance and returns the new one
+     * @param <T>      the type of the metadata class
+     * @return the new instance
+     */
+    public <T> T update(Class<T> clazz, String id, UnaryOperator<T> operator) {
+        return dataHandler.update(clazz, id, operator);
+    }
+
+    /**
+     * Atomically replaces a copy-on-write pattern-based metadata instance.
+     *
+     * @param clazz    the class annotated with @Metadata(copyOnWrite = true) (with {id} pattern)
+     * @param uuid     the unique identifier
+     * @param operator receives a copy of the current instance and returns the new one
+     * @param <T>      the type of the metadata class
+     * @return the new instance
+     */
+    public <T> T update(Class<T> clazz, java.util.UUID uuid, UnaryOperator<T> operator) {
+        return dataHandler.update(clazz, uuid, operator);
+    }
+
     /**
      * Immediately saves a pattern-based metadata instance to disk.
      *
@@ -153,15 +233,46 @@ public class MetadataRegistry extends ElementRegistry {
     }
 
     /**
-     * Batch loads multiple metadata classes.
+     * Loads pattern-based metadata for one UUID in the background and caches it.
+     *
+     * @param uuid    the unique identifier
+     * @param classes the classes annotated with @Metadata (with {id} pattern)
+     * @return a future that completes once all classes are cached
+     */
+    public CompletableFuture<Void> prefetch(java.util.UUID uuid, Class<?>... classes) {
+        return dataHandler.prefetch(uuid, classes);
+    }
+
+    /**
+     * Prefetches the given pattern-based classes for every player during
+     * AsyncPlayerPreLoginEvent, so reads on the main thread after join hit the cache.
+     *
+     * @param classes the classes annotated with @Metadata (with {id} pattern)
+     */
+    public void prefetchOnLogin(Class<?>... classes) {
+        Bukkit.getServer().getPluginManager().registerEvents(
+                new PrefetchListener(plugin, dataHandler, List.of(classes)), plugin);
+    }
+
+    /**
+     * Batch loads multiple metadata classes in parallel.
      *
      * @param classes the classes to load
      */
     @SafeVarargs
     public final void loadAll(Class<?>... classes) {
-        for (Class<?> clazz : classes) {
-            dataHandler.get(clazz);
-        }
+        dataHandler.loadMetadatasTimed(classes);
+    }
+
+    /**
+     * Batch loads multiple metadata classes in parallel.
+     *
+     * @param classes the classes to load
+     * @return the load time of every class
+     * @see DataHandler#loadMetadatasTimed(Class[])
+     */
+    public Map<Class<?>, Duration> loadAllTimed(Class<?>... classes) {
+        return dataHandler.loadMetadatasTimed(classes);
     }
 
     /**
@@ -172,6 +283,119 @@ public class MetadataRegistry extends ElementRegistry {
         dataHandler.saveMetadatas();
     }
 
+    /**
+     * Finds ids of a pattern-based class by the range of an {@code @Indexed} field.
+     *
+     * @param clazz the class annotated with @Metadata (with {id} pattern)
+     * @param field the name of the indexed field
+     * @param from  the lowest value (inclusive), or null
+     * @param to    the highest value (inclusive), or null
+     * @return the matching ids in ascending order of the field's value
+     */
+    public List<String> query(Class<?> clazz, String field, Object from, Object to) {
+        return dataHandler.query(clazz, field, from, to);
+    }
+
+    /**
+     * Returns the ids with the highest values of an {@code @Indexed} field, e.g. for leaderboards.
+     *
+     * @param clazz the class annotated with @Metadata (with {id} pattern)
+     * @param field the name of the indexed field
+     * @param limit the maximum number of ids
+     * @return the ids, highest value first
+     */
+    public List<String> top(Class<?> clazz, String field, int limit) {
+        return dataHandler.top(clazz, field, limit);
+    }
+
+    /**
+     * Registers a schema migration step, see {@link DataHandler#registerMigration}.
+     *
+     * @param clazz       the class annotated with @Metadata(version = ...)
+     * @param fromVersion the version the step upgrades from
+     * @param migration   the upgrade step
+     */
+    public void registerMigration(Class<?> clazz, int fromVersion, UnaryOperator<ObjectNode> migration) {
+        dataHandler.registerMigration(clazz, fromVersion, migration);
+    }
+
+    /**
+     * Upgrades all stored documents of a versioned class, see {@link DataHandler#migrateAll(Class)}.
+     *
+     * @param clazz the class annotated with @Metadata(version = ...)
+     * @return the number of upgraded documents
+     */
+    public int migrateAll(Class<?> clazz) {
+        return dataHandler.migrateAll(clazz);
+    }
+
+    /**
+     * Restores an entry to its state at a point in time, see {@link DataHandler#restore(Class, String, Instant)}.
+     *
+     * @param clazz       the class annotated with @Metadata (with {id} pattern)
+     * @param uuid        the id of the entry
+     * @param pointInTime the time to restore
+     * @return the restored instance, or null if the write-ahead log has no earlier state
+     */
+    public <T> T restore(Class<T> clazz, java.util.UUID uuid, Instant pointInTime) {
+        return dataHandler.restore(clazz, uuid, pointInTime);
+    }
+
+    /**
+     * Saves all changes and writes an incremental backup, see {@link DataHandler#snapshot(Path)}.
+     *
+     * @param target the snapshot directory, e.g. {@code backups/2024-05-01}
+     * @return what was copied and linked
+     */
+    public MetadataSnapshot snapshot(Path target) {
+        dataHandler.saveMetadatas();
+        return dataHandler.snapshot(target);
+    }
+
+    /**
+     * Runs the body as one transaction, see {@link DataHandler#transaction(Runnable)}.
+     *
+     * @param body the code that saves metadata
+     */
+    public void transaction(Runnable body) {
+        dataHandler.transaction(body);
+    }
+
+    /**
+     * Logs every change so it survives a crash between autosaves, see
+     * {@link DataHandler#enableWriteAheadLog(Duration)}. Call it before loading any metadata.
+     *
+     * @param retention how long changes are kept for {@link #restore}
+     */
+    public void enableWriteAheadLog(Duration retention) {
+        dataHandler.enableWriteAheadLog(retention);
+    }
+
+    /**
+     * Switches the DataHandler to write-behind mode: saves are queued and written
+     * by a background thread. {@link #saveAll()} still blocks until everything is on disk.
+     */
+    public void enableWriteBehind() {
+        dataHandler.enableWriteBehind();
+    }
+
+    /**
+     * Flushes pending writes and stops background threads of the DataHandler.
+     * Call this in onDisable() after {@link #saveAll()}.
+     */
+    public void close() {
+        dataHandler.close();
+    }
+
+    /**
+     * Returns hit/miss/eviction statistics of all metadata caches.
+     *
+     * @return the combined cache statistics
+     */
+    public CacheStats getCacheStats() {
+        return dataHandler.getCacheStats();
+    }
+
     /**
      * Clears the cache for a specific metadata class.
      *
@@ -0,0 +1,102 @@
+package de.muckmuck96.elements.element.metadata;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * Timed comparison of {@link MetadataCompression#NONE} and {@link MetadataCompression#GZIP}:
+ * bytes at rest, the CPU spent compressing and decompressing, and the time of a durable
+ * write (write plus fsync, including compression) for documents of different sizes.
+ * <p>
+ * Not a unit test, run it by hand on the machine the server runs on, since the disk decides
+ * the outcome:
+ * </p>
+ * <pre>{@code
+ * mvn -q test-compile
+ * java -cp target/classes:target/test-classes de.muckmuck96.elements.element.metadata.CompressionBenchmark [dir]
+ * }</pre>
+ */
+public final class CompressionBenchmark {
+    private static final int[] ITEM_COUNTS = {10, 300, 5_000};
+    private static final long CPU_BUDGET_NANOS = 1_000_000_000L;
+    private static final int WRITES = 50;
+
+    private CompressionBenchmark() {}
+
+    public static void main(String[] args) throws IOException {
+        Path dir = args.length > 0 ? Path.of(args[0]) : Files.createTempDirectory("compression-benchmark");
+        Files.createDirectories(dir);
+        System.out.printf("%-8s %10s %10s %6s %12s %12s %14s %14s%n", "items", "json B", "gzip B", "ratio",
+                "compress us", "inflate us", "write none us", "write gzip us");
+        for (int items : ITEM_COUNTS) {
+            byte[] json = document(items, new Random(items));
+            byte[] gzip = MetadataCompression.GZIP.compress(json);
+            double compress = cpuMicros(() -> MetadataCompression.GZIP.compress(json));
+            double inflate = cpuMicros(() -> {
+                try {
+                    MetadataCompression.GZIP.decompress(gzip);
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+            double writeNone = writeMicros(dir.resolve("none.json"), MetadataCompression.NONE, json);
+            double writeGzip = writeMicros(dir.resolve("gzip.json.gz"), MetadataCompression.GZIP, json);
+            System.out.printf("%-8d %10d %10d %6.2f %12.1f %12.1f %14.1f %14.1f%n", items, json.length, gzip.length,
+                    (double) gzip.length / json.length, compress, inflate, writeNone, writeGzip);
+        }
+    }
+
+    /**
+     * An inventory-backup-like document: repetitive keys and materials, varying amounts and names.
+     */
+    private static byte[] document(int items, Random random) {
+        String[] materials = {"DIAMOND_SWORD", "STONE", "OAK_LOG", "IRON_INGOT", "BREAD", "TORCH", "ENCHANTED_BOOK"};
+        StringBuilder json = new StringBuilder("{\n  \"owner\" : \"").append(new UUID(random.nextLong(), random.nextLong()))
+                .append("\",\n  \"items\" : [ ");
+        for (int i = 0; i < items; i++) {
+            if (i > 0) json.append(", ");
+            json.append("{\n    \"slot\" : ").append(i % 41)
+                    .append(",\n    \"type\" : \"").append(materials[random.nextInt(materials.length)])
+                    .append("\",\n    \"amount\" : ").append(1 + random.nextInt(64))
+                    .append(",\n    \"meta\" : {\n      \"display-name\" : \"Item #").append(random.nextInt(100_000))
+                    .append("\",\n      \"damage\" : ").append(random.nextInt(1500))
+                    .append("\n    }\n  }");
+        }
+        return json.append(" ]\n}").toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static double cpuMicros(Runnable op) {
+        for (int i = 0; i < 200; i++) op.run(); // warm-up
+        long start = System.nanoTime();
+        long ops = 0;
+        do {
+            op.run();
+            ops++;
+        } while (System.nanoTime() - start < CPU_BUDGET_NANOS);
+        return (System.nanoTime() - start) / 1_000.0 / ops;
+    }
+
+    private static double writeMicros(Path file, MetadataCompression compression, byte[] json) throws IOException {
+        long total = 0;
+        for (int i = -5; i < WRITES; i++) { // the first five are warm-up
+            long start = System.nanoTime();
+            byte[] bytes = compression.compress(json);
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer buffer = ByteBuffer.wrap(bytes);
+                while (buffer.hasRemaining()) channel.write(buffer);
+                channel.force(true);
+            }
+            if (i >= 0) total += System.nanoTime() - start;
+        }
+        Files.delete(file);
+        return total / 1_000.0 / WRITES;
+    }
+}